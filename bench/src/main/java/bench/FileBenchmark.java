@@ -0,0 +1,106 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Reading a file through cat and grep, on their own, piped together and redirected to a file.
+// Sizes either side of 1 MB exercise both the heap-buffered and the memory-mapped read paths.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileBenchmark {
+    @Param({"0.1", "16", "128"})
+    public double sizeMb;
+
+    private Object shell;
+    private PrintStream console;
+    private Path dir;
+    private String file;
+    private String output;
+
+    @Setup
+    public void setUp() throws IOException {
+        console = ShellBridge.discardOutput();
+        shell = ShellBridge.newShell();
+        dir = Files.createTempDirectory("shell-bench");
+        file = Fixtures.quote(Fixtures.textFile(dir, (long) (sizeMb * 1024 * 1024)));
+        output = Fixtures.quote(dir.resolve("output.txt"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public boolean cat() {
+        return ShellBridge.handleCommand(shell, "cat " + file);
+    }
+
+    @Benchmark
+    public boolean grepManyMatches() {
+        return ShellBridge.handleCommand(shell, "grep " + Fixtures.COMMON + " " + file);
+    }
+
+    @Benchmark
+    public boolean grepFewMatches() {
+        return ShellBridge.handleCommand(shell, "grep " + Fixtures.RARE + " " + file);
+    }
+
+    @Benchmark
+    public boolean grepNoMatches() {
+        return ShellBridge.handleCommand(shell, "grep " + Fixtures.ABSENT + " " + file);
+    }
+
+    @Benchmark
+    public boolean grepCount() {
+        return ShellBridge.handleCommand(shell, "grep -c " + Fixtures.COMMON + " " + file);
+    }
+
+    @Benchmark
+    public boolean grepRegex() {
+        return ShellBridge.handleCommand(shell, "grep -E \"" + Fixtures.RARE + " [a-e]\" " + file);
+    }
+
+    @Benchmark
+    public boolean catPipeGrep() {
+        return ShellBridge.handleCommand(shell, "cat " + file + " | grep " + Fixtures.RARE);
+    }
+
+    @Benchmark
+    public boolean catPipeGrepPipeGrep() {
+        return ShellBridge.handleCommand(shell, "cat " + file + " | grep " + Fixtures.COMMON + " | grep -c " + Fixtures.RARE);
+    }
+
+    // Copied channel to channel without decoding
+    @Benchmark
+    public boolean redirectCat() {
+        return ShellBridge.handleCommand(shell, "cat " + file + " > " + output);
+    }
+
+    // Every line decoded and encoded again on its way to the file
+    @Benchmark
+    public boolean redirectLines() {
+        return ShellBridge.handleCommand(shell, "cat " + file + " | grep " + Fixtures.COMMON + " > " + output);
+    }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+// Generated input for the benchmarks, written once per trial into a temporary directory
+final class Fixtures {
+    // Present in every generated line
+    static final String COMMON = "line";
+    // Present in one line out of RARE_INTERVAL
+    static final String RARE = "needle";
+    static final int RARE_INTERVAL = 100;
+    // Never present
+    static final String ABSENT = "zqxjkv";
+
+    private static final String[] WORDS = {
+            "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+            "india", "juliett", "kilo", "lima", "mike", "november", "oscar", "papa"
+    };
+
+    private Fixtures() {
+    }
+
+    // A text file of about the given size with lines of 40 to 120 characters
+    static Path textFile(Path dir, long bytes) throws IOException {
+        Path file = dir.resolve("text-" + bytes + ".txt");
+        Random random = new Random(42);
+        StringBuilder line = new StringBuilder();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            long written = 0;
+            for (long n = 0; written < bytes; n++) {
+                line.setLength(0);
+                line.append(COMMON).append(' ').append(n);
+                if (n % RARE_INTERVAL == 0) {
+                    line.append(' ').append(RARE);
+                }
+                int length = 40 + random.nextInt(81);
+                while (line.length() < length) {
+                    line.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                line.append('\n');
+                writer.append(line);
+                written += line.length();
+            }
+        }
+        return file;
+    }
+
+    // A tree of the given depth where every directory has fanout subdirectories and files regular files
+    static Path tree(Path dir, int depth, int fanout, int files) throws IOException {
+        Path root = dir.resolve("tree-" + depth + "-" + fanout + "-" + files);
+        Files.createDirectories(root);
+        populate(root, depth, fanout, files);
+        return root;
+    }
+
+    private static void populate(Path dir, int depth, int fanout, int files) throws IOException {
+        for (int i = 0; i < files; i++) {
+            Files.writeString(dir.resolve("file" + i + ".txt"), COMMON + " " + i + "\n");
+        }
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < fanout; i++) {
+            Path child = Files.createDirectory(dir.resolve("dir" + i));
+            populate(child, depth - 1, fanout, files);
+        }
+    }
+
+    static void delete(Path root) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Quote a path for the shell's command line
+    static String quote(Path path) {
+        return "\"" + path.toAbsolutePath().toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
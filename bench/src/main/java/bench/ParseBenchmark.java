@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of getting from a command line to a running command: lexing alone, and the whole of
+// handleCommand for a command that does almost nothing
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    @Param({"4", "64", "1024"})
+    public int words;
+
+    private Object shell;
+    private PrintStream console;
+    private String echo;
+    private String pipe;
+
+    @Setup
+    public void setUp() {
+        console = ShellBridge.discardOutput();
+        shell = ShellBridge.newShell();
+        StringBuilder line = new StringBuilder("echo");
+        for (int i = 0; i < words; i++) {
+            // A mix of plain, quoted and escaped words
+            switch (i % 3) {
+                case 0 -> line.append(" word").append(i);
+                case 1 -> line.append(" \"quoted ").append(i).append('"');
+                default -> line.append(" escaped\\ ").append(i);
+            }
+        }
+        echo = line.toString();
+        pipe = echo + " | grep word | grep -c 1 > /dev/null";
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public List<?> lex() {
+        return ShellBridge.parse(pipe);
+    }
+
+    @Benchmark
+    public boolean handleEcho() {
+        return ShellBridge.handleCommand(shell, echo);
+    }
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+// The shell's classes live in the default package, which a named package can't import, so the benchmarks
+// reach them through method handles looked up once. Constant handles called with invokeExact are inlined
+// by the JIT, so going through the bridge costs nothing measurable.
+final class ShellBridge {
+    private static final MethodHandle NEW_SHELL;
+    private static final MethodHandle HANDLE_COMMAND;
+    private static final MethodHandle PARSE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> shell = Class.forName("Shell");
+            NEW_SHELL = lookup.findConstructor(shell, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            HANDLE_COMMAND = lookup.findVirtual(shell, "handleCommand", MethodType.methodType(boolean.class, String.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, String.class));
+            PARSE = lookup.findStatic(Class.forName("Lexer"), "parse", MethodType.methodType(List.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ShellBridge() {
+    }
+
+    static Object newShell() {
+        try {
+            return (Object) NEW_SHELL.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static boolean handleCommand(Object shell, String command) {
+        try {
+            return (boolean) HANDLE_COMMAND.invokeExact(shell, command);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static List<?> parse(String line) {
+        try {
+            return (List<?>) PARSE.invokeExact(line);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // The shell prints to System.out; benchmarks swap in a sink so the console isn't what gets measured
+    static PrintStream discardOutput() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), false));
+        return original;
+    }
+}
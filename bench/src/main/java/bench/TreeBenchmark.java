@@ -0,0 +1,75 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Walking generated trees with ls -r and grep -r. The default shapes are a deep narrow tree and a
+// shallow wide one with about the same number of entries: 2047 directories holding 10234 entries, and
+// 2071 directories holding 10354.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TreeBenchmark {
+    @Param({"10:2:4", "2:45:4"})
+    public String shape; // depth:fanout:files per directory
+
+    private Object shell;
+    private PrintStream console;
+    private Path dir;
+    private String tree;
+
+    @Setup
+    public void setUp() throws IOException {
+        console = ShellBridge.discardOutput();
+        shell = ShellBridge.newShell();
+        String[] parts = shape.split(":");
+        dir = Files.createTempDirectory("shell-bench");
+        tree = Fixtures.quote(Fixtures.tree(dir, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                Integer.parseInt(parts[2])));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public boolean ls() {
+        return ShellBridge.handleCommand(shell, "ls -r " + tree);
+    }
+
+    @Benchmark
+    public boolean lsParallel() {
+        return ShellBridge.handleCommand(shell, "ls -rP " + tree);
+    }
+
+    @Benchmark
+    public boolean lsCached() {
+        return ShellBridge.handleCommand(shell, "cache on") & ShellBridge.handleCommand(shell, "ls -r " + tree);
+    }
+
+    @Benchmark
+    public boolean grepRecursive() {
+        return ShellBridge.handleCommand(shell, "grep -rc " + Fixtures.COMMON + " " + tree);
+    }
+}
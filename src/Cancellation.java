@@ -0,0 +1,70 @@
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+// Cooperative cancellation of a background job or a foreground command. The job's thread runs with the job's
+// token and a foreground command with one the shell cancels on Ctrl-C; pipe stage threads take it over from
+// the stage that started them, and walkers and readers capture it when they are created, so their fork/join
+// tasks can check it too. The loops that walk trees and read files check it once per entry or buffer, so a
+// killed job stops within one directory or one block of a file.
+public final class Cancellation {
+    private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<>();
+
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Throw out of whatever the job is doing once it has been killed
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("Job killed");
+        }
+    }
+
+    // The token of the job or command the current thread is working for, or null for none
+    public static Cancellation current() {
+        return CURRENT.get();
+    }
+
+    // Check the current thread's job, for loops that don't keep a token of their own
+    public static void checkCurrent() {
+        Cancellation token = CURRENT.get();
+        if (token != null) {
+            token.check();
+        }
+    }
+
+    // Check a token captured earlier, which may be null
+    public static void check(Cancellation token) {
+        if (token != null) {
+            token.check();
+        }
+    }
+
+    // Run the task on the current thread on behalf of the token's job
+    public static void run(Cancellation token, Runnable task) {
+        call(token, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    public static <T> T call(Cancellation token, Supplier<T> task) {
+        Cancellation previous = CURRENT.get();
+        CURRENT.set(token);
+        try {
+            return task.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
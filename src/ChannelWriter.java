@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+// Writes characters to a channel, usually a file's, encoding them incrementally into a reusable byte buffer.
+// Only one buffer's worth of output is ever held, however much is written, and the caller can decide
+// how hard the data has to reach the disk. Lines that are already encoded go into the same buffer as
+// they are.
+public class ChannelWriter extends Writer {
+    public enum SyncPolicy {
+        OFF,    // Leave it to the operating system
+        CLOSE,  // Force the data to disk once the writer is closed
+        ALWAYS  // Force the data to disk every time the buffer is written
+    }
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer bytes;
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private final SyncPolicy syncPolicy;
+
+    // The byte buffer is cleared and reused, so it can be kept around for the next writer.
+    // Syncing only applies to file channels.
+    public ChannelWriter(WritableByteChannel channel, Charset charset, ByteBuffer buffer, SyncPolicy syncPolicy) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = buffer;
+        this.syncPolicy = syncPolicy;
+        bytes.clear();
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (!chars.hasRemaining()) {
+            encode(false);
+        }
+        chars.put((char) c);
+    }
+
+    @Override
+    public void write(char[] source, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int count = Math.min(length, chars.remaining());
+            chars.put(source, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void write(String source, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int count = Math.min(length, chars.remaining());
+            chars.put(source, offset, offset + count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Write a line that is already encoded in the writer's charset, followed by a newline
+    public void writeLine(ByteBuffer line) throws IOException {
+        if (chars.position() > 0) {
+            encode(false);
+        }
+        while (line.hasRemaining()) {
+            if (!bytes.hasRemaining()) {
+                drain();
+            }
+            int count = Math.min(line.remaining(), bytes.remaining());
+            bytes.put(bytes.position(), line, line.position(), count);
+            bytes.position(bytes.position() + count);
+            line.position(line.position() + count);
+        }
+        if (!bytes.hasRemaining()) {
+            drain();
+        }
+        bytes.put((byte) '\n');
+    }
+
+    // Encode the pending characters, writing the byte buffer out whenever it fills up
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        chars.compact(); // Keeps half of a surrogate pair for the next call
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            Metrics.fsCall(Metrics.FsCall.WRITE);
+            channel.write(bytes);
+        }
+        bytes.clear();
+        if (syncPolicy == SyncPolicy.ALWAYS && channel instanceof FileChannel) {
+            Metrics.fsCall(Metrics.FsCall.FORCE);
+            ((FileChannel) channel).force(false);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        encode(false);
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+            if (syncPolicy == SyncPolicy.CLOSE && channel instanceof FileChannel) {
+                Metrics.fsCall(Metrics.FsCall.FORCE);
+                ((FileChannel) channel).force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
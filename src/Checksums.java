@@ -0,0 +1,184 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+// sha256sum and md5sum: hashes files on the fork/join pool, one task per file, so many files are hashed at
+// once while each file is read in order as hashing requires. Large files are mapped a window at a time and
+// hashed straight from the page cache; smaller ones are read into a direct buffer kept by each pool thread.
+// Lines come out in the order the files were given, or in path order for a tree, whichever file finished
+// first.
+public class Checksums {
+    private static final int MAP_THRESHOLD = 1 << 20;
+    private static final long MAP_WINDOW = 1 << 26;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    private final String algorithm;
+    private final Consumer<String> errors;
+    private final Cancellation cancellation = Cancellation.current();
+
+    // The algorithm is a MessageDigest name such as "SHA-256" or "MD5"; files that can't be read go to errors
+    public Checksums(String algorithm, Consumer<String> errors) {
+        this.algorithm = algorithm;
+        this.errors = errors;
+    }
+
+    // "hash  name" for every file that could be read, names being how the user wrote them
+    public List<String> sum(List<Path> files, List<String> names) {
+        List<RecursiveTask<String>> tasks = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String name = names.get(i);
+            tasks.add(new RecursiveTask<>() {
+                @Override
+                protected String compute() {
+                    return sumLine(file, name);
+                }
+            });
+        }
+        return joinAll(tasks);
+    }
+
+    // "hash  path" for every regular file below root, in path order
+    public List<String> sumTree(Path root, String displayRoot) {
+        return new ParallelWalker<>(new ParallelWalker.Visitor<List<String>>() {
+            @Override
+            public List<String> visitFile(Path file, BasicFileAttributes attributes, int depth) {
+                if (!attributes.isRegularFile()) {
+                    return Collections.emptyList();
+                }
+                String line = sumLine(file, display(root, displayRoot, file));
+                return line == null ? Collections.emptyList() : Collections.singletonList(line);
+            }
+
+            @Override
+            public List<String> postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth,
+                                                   List<List<String>> children) {
+                List<String> lines = new ArrayList<>();
+                for (List<String> child : children) {
+                    lines.addAll(child);
+                }
+                return lines;
+            }
+
+            @Override
+            public List<String> visitFailed(Path path, IOException e) {
+                errors.accept("Unable to read directory: " + display(root, displayRoot, path));
+                return Collections.emptyList();
+            }
+        }, true, true).walk(root);
+    }
+
+    // "name: OK" or "name: FAILED" for every file, against the hash a checksum file gave for it
+    public List<String> check(List<Path> files, List<String> names, List<String> expected) {
+        List<RecursiveTask<String>> tasks = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String name = names.get(i);
+            String hash = expected.get(i);
+            tasks.add(new RecursiveTask<>() {
+                @Override
+                protected String compute() {
+                    Cancellation.check(cancellation);
+                    try {
+                        return name + (hex(digest(file, Long.MAX_VALUE)).equalsIgnoreCase(hash) ? ": OK" : ": FAILED");
+                    } catch (IOException e) {
+                        return name + ": FAILED open or read";
+                    }
+                }
+            });
+        }
+        return joinAll(tasks);
+    }
+
+    private String sumLine(Path file, String name) {
+        Cancellation.check(cancellation);
+        try {
+            return hex(digest(file, Long.MAX_VALUE)) + "  " + name;
+        } catch (IOException e) {
+            errors.accept("Error reading file: " + name);
+            return null;
+        }
+    }
+
+    private static List<String> joinAll(List<RecursiveTask<String>> tasks) {
+        ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                ForkJoinTask.invokeAll(tasks);
+                return null;
+            }
+        });
+        List<String> lines = new ArrayList<>(tasks.size());
+        for (RecursiveTask<String> task : tasks) {
+            if (task.join() != null) {
+                lines.add(task.join());
+            }
+        }
+        return lines;
+    }
+
+    // The hash of the file's first limit bytes, or of all of it
+    public byte[] digest(Path file, long limit) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = Math.min(channel.size(), limit);
+            if (size > MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    Cancellation.check(cancellation);
+                    Metrics.fsCall(Metrics.FsCall.MAP);
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = BUFFERS.get();
+                long remaining = size;
+                while (remaining > 0) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                    Metrics.fsCall(Metrics.FsCall.READ);
+                    int read = channel.read(buffer);
+                    if (read < 0) {
+                        break; // The file shrank while it was being read
+                    }
+                    remaining -= read;
+                    digest.update(buffer.flip());
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static String display(Path root, String displayRoot, Path path) {
+        if (path.equals(root)) {
+            return displayRoot;
+        }
+        String prefix = displayRoot.endsWith(File.separator) ? displayRoot : displayRoot + File.separator;
+        return prefix + root.relativize(path);
+    }
+}
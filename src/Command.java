@@ -0,0 +1,9 @@
+import java.io.IOException;
+
+// A builtin shell command.
+// It receives the output of the previous pipe stage as its input, or null when it starts the pipe, and
+// returns its own output for the next stage. A command that has no use for its input must close it so
+// the stages before it stop producing.
+public interface Command {
+    LineSource execute(String[] args, LineSource input) throws IOException;
+}
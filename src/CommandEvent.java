@@ -0,0 +1,18 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight Recorder event spanning one command line, from parsing to the last line of output
+@Name("shell.Command")
+@Label("Shell Command")
+@Category("Shell")
+@Description("A command line run by the shell")
+public class CommandEvent extends Event {
+    @Label("Command Line")
+    public String commandLine;
+
+    @Label("Failed")
+    public boolean failed;
+}
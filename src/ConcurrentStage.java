@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs a pipe stage on its own thread and hands its lines to the next stage through a bounded queue.
+// Lines travel in batches so the queue is touched once per batch rather than once per line, and a full
+// queue blocks the producer until the consumer catches up. When the upstream offers its lines as bytes,
+// a batch is a block of them copied end to end, and they stay bytes on the other side too.
+public class ConcurrentStage implements LineSource {
+    private static final int BATCH_SIZE = 512;
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final Batch END = new Batch(Collections.<String>emptyList());
+
+    // Shared by every pipe; threads are daemons so an abandoned stage never keeps the shell alive
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "pipe-stage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Either lines, or lines as bytes laid end to end with where each of them ends. Byte batches go back to
+    // the producer once read, so a long pipe reuses the same few blocks.
+    private static class Batch {
+        final List<String> lines;
+        ByteBuffer bytes;
+        final int[] ends;
+        int size;
+
+        Batch(List<String> lines) {
+            this.lines = lines;
+            this.ends = null;
+            this.size = lines.size();
+        }
+
+        Batch(int blockSize) {
+            this.lines = null;
+            this.bytes = ByteBuffer.allocate(blockSize);
+            this.ends = new int[BATCH_SIZE];
+        }
+    }
+
+    private final LineSource upstream;
+    // The job this pipe belongs to, carried over to the stage thread
+    private final Cancellation cancellation;
+    // Set when lines travel as bytes
+    private final Charset charset;
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure;
+    private Thread producer;
+
+    // Consumer side state, only touched by the thread reading this stage
+    private Batch batch = END;
+    private int index = 0;
+    private ByteBuffer view;
+    private boolean finished = false;
+
+    public ConcurrentStage(LineSource upstream) {
+        this.upstream = upstream;
+        this.charset = upstream.byteCharset();
+        this.cancellation = Cancellation.current();
+        EXECUTOR.execute(() -> Cancellation.run(cancellation, this::produce));
+    }
+
+    // Pull the upstream dry on the stage thread
+    private void produce() {
+        synchronized (this) {
+            producer = Thread.currentThread();
+        }
+        try {
+            if (charset == null) {
+                produceLines();
+            } else {
+                produceBytes();
+            }
+        } catch (Throwable e) {
+            if (!cancelled) {
+                failure = e;
+            }
+        } finally {
+            try {
+                upstream.close();
+            } catch (IOException e) {
+                if (failure == null && !cancelled) {
+                    failure = e;
+                }
+            }
+            synchronized (this) {
+                producer = null;
+            }
+            Thread.interrupted(); // Don't leak a cancellation into the next pipe that reuses this thread
+            if (!cancelled) {
+                putEnd();
+            }
+            done.countDown();
+        }
+    }
+
+    private void produceLines() throws IOException, InterruptedException {
+        List<String> pending = new ArrayList<>(BATCH_SIZE);
+        String line;
+        while (!cancelled) {
+            if (!pending.isEmpty() && !upstream.ready()) {
+                // The upstream is about to wait for input, so don't keep what it already produced waiting too
+                queue.put(new Batch(pending));
+                pending = new ArrayList<>(BATCH_SIZE);
+            }
+            if ((line = upstream.nextLine()) == null) {
+                break;
+            }
+            pending.add(line);
+            if (pending.size() == BATCH_SIZE) {
+                queue.put(new Batch(pending));
+                pending = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        if (!pending.isEmpty() && !cancelled) {
+            queue.put(new Batch(pending));
+        }
+    }
+
+    private void produceBytes() throws IOException, InterruptedException {
+        Batch pending = emptyBatch();
+        ByteBuffer line;
+        while (!cancelled) {
+            if (pending.size > 0 && (pending.size == BATCH_SIZE || !upstream.ready())) {
+                pending = send(pending);
+            }
+            if ((line = upstream.nextLineBytes()) == null) {
+                break;
+            }
+            if (pending.bytes.remaining() < line.remaining()) {
+                if (pending.size > 0) {
+                    pending = send(pending);
+                }
+                if (pending.bytes.remaining() < line.remaining()) {
+                    pending.bytes = ByteBuffer.allocate(line.remaining()); // A line longer than a block
+                }
+            }
+            pending.bytes.put(line);
+            pending.ends[pending.size++] = pending.bytes.position();
+        }
+        if (pending.size > 0 && !cancelled) {
+            send(pending);
+        }
+    }
+
+    private Batch emptyBatch() {
+        Batch batch = free.poll();
+        if (batch == null) {
+            return new Batch(BLOCK_SIZE);
+        }
+        if (batch.bytes.capacity() > BLOCK_SIZE) {
+            batch.bytes = ByteBuffer.allocate(BLOCK_SIZE); // Don't keep a long line's block around
+        }
+        batch.bytes.clear();
+        batch.size = 0;
+        return batch;
+    }
+
+    // Queue a filled byte batch, returning an empty one to go on with
+    private Batch send(Batch batch) throws InterruptedException {
+        batch.bytes.flip();
+        queue.put(batch);
+        return emptyBatch();
+    }
+
+    // The consumer is still reading, so the end marker must get through even if the queue is full
+    private void putEnd() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String nextLine() throws IOException {
+        if (charset != null) {
+            ByteBuffer line = nextLineBytes();
+            return line == null ? null : new String(line.array(), line.arrayOffset() + line.position(), line.remaining(), charset);
+        }
+        return nextBatch() ? batch.lines.get(index++) : null;
+    }
+
+    @Override
+    public Charset byteCharset() {
+        return charset;
+    }
+
+    @Override
+    public ByteBuffer nextLineBytes() throws IOException {
+        if (!nextBatch()) {
+            return null;
+        }
+        view.limit(batch.ends[index]).position(index == 0 ? 0 : batch.ends[index - 1]);
+        index++;
+        return view;
+    }
+
+    private boolean usedUp() {
+        return index == batch.size;
+    }
+
+    // Wait for the next batch once the current one is used up, returning false at the end
+    private boolean nextBatch() throws IOException {
+        while (usedUp()) {
+            if (finished) {
+                return false;
+            }
+            if (batch.bytes != null) {
+                free.offer(batch); // Its last line has been handed out and is done with
+            }
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Pipe interrupted");
+            }
+            index = 0;
+            if (batch == END) {
+                finished = true;
+                rethrowFailure();
+                return false;
+            }
+            if (batch.bytes != null) {
+                view = batch.bytes.duplicate();
+            }
+        }
+        return true;
+    }
+
+    // Lines are waiting in the queue, or the stage has finished
+    @Override
+    public boolean ready() {
+        return !usedUp() || finished || !queue.isEmpty();
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable e = failure;
+        if (e == null) {
+            return;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new IOException(e);
+    }
+
+    // Stop the stage thread, drop anything it already queued and wait until it has closed its upstream
+    @Override
+    public void close() throws IOException {
+        if (finished && done.getCount() == 0) {
+            return;
+        }
+        cancelled = true;
+        synchronized (this) {
+            if (producer != null) {
+                producer.interrupt();
+            }
+        }
+        queue.clear();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        finished = true;
+        batch = END;
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Snapshots of directory listings (names plus attributes) kept between commands.
+// Every cached directory is registered with a WatchService and dropped as soon as anything in it changes;
+// the shell's own file commands patch the snapshots directly so they stay right before the event arrives.
+// The least recently used snapshots are evicted once the total number of cached entries passes the limit.
+// A directory the system won't watch (inotify has a per-user limit on watches) is listed every time instead,
+// and only so many caches may be open at once, since each watch service takes one of the user's few
+// inotify instances.
+public class DirectoryCache implements Closeable {
+    private static final int MAX_ENTRIES = 100_000;
+    private static final int MAX_CACHES = 16;
+    private static final AtomicInteger OPEN_CACHES = new AtomicInteger();
+
+    public static class Entry {
+        public final Path path;
+        public final BasicFileAttributes attributes;
+
+        Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+    }
+
+    private static class Snapshot {
+        final List<Entry> entries;
+        final WatchKey key;
+        // Events caused by the shell's own patches, which must not throw the patched snapshot away
+        final Set<String> expectedEvents;
+
+        Snapshot(List<Entry> entries, WatchKey key, Set<String> expectedEvents) {
+            this.entries = entries;
+            this.key = key;
+            this.expectedEvents = expectedEvents;
+        }
+    }
+
+    private final WatchService watcher;
+    private final LinkedHashMap<Path, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedEntries = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+    private long unwatched = 0;
+    private boolean closed = false;
+
+    public DirectoryCache() throws IOException {
+        if (OPEN_CACHES.incrementAndGet() > MAX_CACHES) {
+            OPEN_CACHES.decrementAndGet();
+            throw new IOException("Too many directory caches are open");
+        }
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            OPEN_CACHES.decrementAndGet();
+            throw e;
+        }
+    }
+
+    // The directory's entries with their attributes, from the cache when it is still valid.
+    // The returned list is never modified afterwards, so a walker can keep iterating it.
+    public synchronized List<Entry> list(Path dir) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+        processEvents();
+        Snapshot snapshot = snapshots.get(dir);
+        if (snapshot != null) {
+            hits++;
+            return snapshot.entries;
+        }
+        misses++;
+        // Watch before reading, so a change made while we list still invalidates the snapshot
+        WatchKey key;
+        try {
+            key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            // Out of watches; a snapshot nothing invalidates could go stale, so this one isn't kept
+            unwatched++;
+            key = null;
+        }
+        List<Entry> entries = new ArrayList<>();
+        Metrics.fsCall(Metrics.FsCall.LIST);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                try {
+                    entries.add(new Entry(path, DirectoryWalker.readAttributes(path)));
+                } catch (IOException e) {
+                    // Removed while we were listing
+                }
+            }
+        } catch (IOException e) {
+            if (key != null) {
+                key.cancel();
+            }
+            throw e;
+        }
+        entries = Collections.unmodifiableList(entries);
+        if (key == null) {
+            return entries;
+        }
+        if (entries.size() > MAX_ENTRIES) {
+            key.cancel();
+            return entries;
+        }
+        snapshots.put(dir, new Snapshot(entries, key, new HashSet<>()));
+        cachedEntries += entries.size();
+        evict();
+        return entries;
+    }
+
+    // The shell created or replaced this path, so add it to its parent's snapshot
+    public synchronized void added(Path path) {
+        Path added = path.toAbsolutePath().normalize();
+        Snapshot snapshot = snapshots.get(added.getParent());
+        if (snapshot == null) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>(snapshot.entries);
+        entries.removeIf(entry -> entry.path.getFileName().equals(added.getFileName()));
+        try {
+            entries.add(new Entry(added, DirectoryWalker.readAttributes(added)));
+        } catch (IOException e) {
+            invalidate(added.getParent());
+            return;
+        }
+        snapshot.expectedEvents.add(StandardWatchEventKinds.ENTRY_CREATE.name() + '/' + added.getFileName());
+        replace(added.getParent(), snapshot, entries);
+    }
+
+    // The shell removed this path, so drop it from its parent's snapshot, along with any snapshots of the
+    // directories that were inside it
+    public synchronized void removed(Path path) {
+        Path removed = path.toAbsolutePath().normalize();
+        List<Path> inside = new ArrayList<>();
+        for (Path dir : snapshots.keySet()) {
+            if (dir.startsWith(removed)) {
+                inside.add(dir);
+            }
+        }
+        for (Path dir : inside) {
+            invalidate(dir);
+        }
+        Snapshot snapshot = snapshots.get(removed.getParent());
+        if (snapshot == null) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>(snapshot.entries);
+        entries.removeIf(entry -> entry.path.getFileName().equals(removed.getFileName()));
+        snapshot.expectedEvents.add(StandardWatchEventKinds.ENTRY_DELETE.name() + '/' + removed.getFileName());
+        replace(removed.getParent(), snapshot, entries);
+    }
+
+    private void replace(Path dir, Snapshot snapshot, List<Entry> entries) {
+        cachedEntries += entries.size() - snapshot.entries.size();
+        snapshots.put(dir, new Snapshot(Collections.unmodifiableList(entries), snapshot.key, snapshot.expectedEvents));
+    }
+
+    // Drop every snapshot whose directory reported a change since the last lookup
+    private void processEvents() {
+        WatchKey key;
+        try {
+            while ((key = watcher.poll()) != null) {
+                Path dir = (Path) key.watchable();
+                Snapshot snapshot = snapshots.get(dir);
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    // Anything the shell didn't patch in itself, including an overflow, means the snapshot is stale
+                    if (snapshot == null || !snapshot.expectedEvents.remove(event.kind().name() + '/' + event.context())) {
+                        changed = true;
+                    }
+                }
+                // A key that can't be reset belongs to a directory that no longer exists
+                if (changed || !key.reset()) {
+                    invalidate(dir);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed while a stage was still listing, nothing left to invalidate
+        }
+    }
+
+    private void invalidate(Path dir) {
+        Snapshot snapshot = snapshots.remove(dir);
+        if (snapshot != null) {
+            snapshot.key.cancel();
+            cachedEntries -= snapshot.entries.size();
+            invalidations++;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, Snapshot>> eldest = snapshots.entrySet().iterator();
+        while (cachedEntries > MAX_ENTRIES && eldest.hasNext()) {
+            Snapshot snapshot = eldest.next().getValue();
+            eldest.remove();
+            snapshot.key.cancel();
+            cachedEntries -= snapshot.entries.size();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        for (Snapshot snapshot : snapshots.values()) {
+            snapshot.key.cancel();
+        }
+        snapshots.clear();
+        cachedEntries = 0;
+    }
+
+    public synchronized String stats() {
+        processEvents();
+        long lookups = hits + misses;
+        double hitRate = lookups == 0 ? 0 : 100.0 * hits / lookups;
+        return String.format("Directories: %d\nEntries: %d\nHits: %d\nMisses: %d\nHit rate: %.1f%%\n"
+                        + "Invalidations: %d\nEvictions: %d\nUnwatched: %d",
+                snapshots.size(), cachedEntries, hits, misses, hitRate, invalidations, evictions, unwatched);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        clear();
+        OPEN_CACHES.decrementAndGet();
+        watcher.close();
+    }
+}
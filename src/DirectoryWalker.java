@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+// Lists a directory, optionally with everything below it, one entry per line as entries are found.
+// Directories being listed are kept on an explicit stack instead of the call stack, so depth is only
+// limited by open directory handles, and every entry's attributes are read with a single call.
+public class DirectoryWalker implements LineSource {
+    // Linux offers a dos view too, kept in extended attributes, but it fails on symbolic links and doesn't
+    // decide what File.isHidden() reports there
+    private static final boolean DOS_ATTRIBUTES = FileSystems.getDefault().supportedFileAttributeViews().contains("dos")
+            && !FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private final boolean showHidden;
+    private final boolean recursive;
+    private final DirectoryCache cache;
+    private final Deque<Level> stack = new ArrayDeque<>();
+    private final Cancellation cancellation = Cancellation.current();
+
+    // A directory being listed, either straight from the filesystem or from a cached snapshot
+    private static class Level {
+        final DirectoryStream<Path> stream;
+        final Iterator<Path> paths;
+        final Iterator<DirectoryCache.Entry> cached;
+        final boolean top;
+
+        Level(Path dir, boolean top, DirectoryCache cache) throws IOException {
+            if (cache != null) {
+                this.stream = null;
+                this.paths = null;
+                this.cached = cache.list(dir).iterator();
+            } else {
+                Metrics.fsCall(Metrics.FsCall.LIST);
+                this.stream = Files.newDirectoryStream(dir);
+                this.paths = stream.iterator();
+                this.cached = null;
+            }
+            this.top = top;
+        }
+
+        boolean hasNext() {
+            return cached != null ? cached.hasNext() : paths.hasNext();
+        }
+
+        void close() throws IOException {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    // Opens the directory straight away so an unreadable one is reported before anything is streamed
+    public DirectoryWalker(Path dir, boolean showHidden, boolean recursive) throws IOException {
+        this(dir, showHidden, recursive, null);
+    }
+
+    // Listings come from the cache when one is given
+    public DirectoryWalker(Path dir, boolean showHidden, boolean recursive, DirectoryCache cache) throws IOException {
+        this.showHidden = showHidden;
+        this.recursive = recursive;
+        this.cache = cache;
+        stack.push(new Level(dir, true, cache));
+    }
+
+    // Attributes of the entry itself, never of a link's target, read in one call
+    public static BasicFileAttributes readAttributes(Path path) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.STAT);
+        if (DOS_ATTRIBUTES) {
+            return Files.readAttributes(path, DosFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    // Hidden the way File.isHidden() sees it, without another filesystem call
+    public static boolean isHidden(Path path, BasicFileAttributes attributes) {
+        if (attributes instanceof DosFileAttributes) {
+            return ((DosFileAttributes) attributes).isHidden();
+        }
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    // Top-level entries are shown by name, deeper ones by their full path
+    static String display(Path entry, boolean top) {
+        return top ? entry.getFileName().toString() : entry.getParent() + File.separator + entry.getFileName();
+    }
+
+    @Override
+    public String nextLine() throws IOException {
+        while (!stack.isEmpty()) {
+            Cancellation.check(cancellation);
+            Level level = stack.peek();
+            if (!level.hasNext()) {
+                level.close();
+                stack.pop();
+                continue;
+            }
+            Path entry;
+            BasicFileAttributes attributes;
+            if (level.cached != null) {
+                DirectoryCache.Entry cached = level.cached.next();
+                entry = cached.path;
+                attributes = cached.attributes;
+            } else {
+                entry = level.paths.next();
+                try {
+                    attributes = readAttributes(entry);
+                } catch (IOException e) {
+                    continue; // Removed while we were listing
+                }
+            }
+            if (!showHidden && isHidden(entry, attributes)) {
+                continue;
+            }
+            if (recursive && attributes.isDirectory()) {
+                try {
+                    stack.push(new Level(entry, false, cache));
+                } catch (IOException e) {
+                    // Unreadable directories are still listed, just not descended into
+                }
+            }
+            return display(entry, level.top);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        while (!stack.isEmpty()) {
+            stack.pop().close();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// du: adds up the sizes below a directory with one fork/join task per directory, printing the totals of
+// directories down to a maximum depth, deepest first. Sizes are apparent sizes, what a file's attributes
+// report, since Java has no portable view of the blocks a file takes up.
+// With a cache, what a directory holds directly (the total of its files and the names of its
+// subdirectories) is kept against its modification time, which changes whenever an entry is added, removed
+// or renamed. An unchanged directory then costs one stat instead of a listing and a stat per entry, and
+// only the subtrees that changed are listed again. A file that grows in place doesn't change its
+// directory's time, so its old size is used until something else in the directory changes or the cache is
+// cleared.
+public class DiskUsage {
+    private final Path root;
+    private final String displayRoot;
+    private final int maxDepth;
+    private final boolean human;
+    private final Cache cache;
+    private final Consumer<String> errors;
+    private final Cancellation cancellation = Cancellation.current();
+
+    // Totals of directories' own entries, for the session
+    public static class Cache {
+        private static final int MAX_DIRECTORIES = 200_000;
+
+        private final ConcurrentHashMap<Path, Listing> listings = new ConcurrentHashMap<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        Listing get(Path dir, BasicFileAttributes attributes) {
+            Listing listing = listings.get(dir);
+            if (listing != null && listing.modified.equals(attributes.lastModifiedTime())
+                    && Objects.equals(listing.fileKey, attributes.fileKey())) {
+                hits.increment();
+                return listing;
+            }
+            misses.increment();
+            return null;
+        }
+
+        void put(Path dir, Listing listing) {
+            if (listings.size() >= MAX_DIRECTORIES) {
+                listings.clear(); // Start over rather than track which totals are worth keeping
+            }
+            listings.put(dir, listing);
+        }
+
+        public void clear() {
+            listings.clear();
+        }
+
+        public String stats() {
+            return String.format("Sizes: %d directories, %d reused, %d listed", listings.size(), hits.sum(), misses.sum());
+        }
+    }
+
+    // What a directory holds directly, as of its modification time
+    private static class Listing {
+        final FileTime modified;
+        final Object fileKey;
+        final long files;
+        final List<Path> directories;
+
+        Listing(BasicFileAttributes attributes, long files, List<Path> directories) {
+            this.modified = attributes.lastModifiedTime();
+            this.fileKey = attributes.fileKey();
+            this.files = files;
+            this.directories = directories;
+        }
+    }
+
+    // The total of a subtree and the lines it prints
+    private static class Usage {
+        final long bytes;
+        final List<String> lines;
+
+        Usage(long bytes, List<String> lines) {
+            this.bytes = bytes;
+            this.lines = lines;
+        }
+    }
+
+    // Paths are shown below displayRoot, the root as the user typed it. A maxDepth below zero prints every
+    // directory; the cache may be null.
+    public DiskUsage(Path root, String displayRoot, int maxDepth, boolean human, Cache cache, Consumer<String> errors) {
+        this.root = root;
+        this.displayRoot = displayRoot;
+        this.maxDepth = maxDepth;
+        this.human = human;
+        this.cache = cache;
+        this.errors = errors;
+    }
+
+    // Lines of size and path, a subtree's directories before the directory holding them
+    public List<String> measure() throws IOException {
+        BasicFileAttributes attributes = DirectoryWalker.readAttributes(root);
+        if (!attributes.isDirectory()) {
+            return Collections.singletonList(format(attributes.size()) + "\t" + displayRoot);
+        }
+        return ForkJoinPool.commonPool().invoke(new DirectoryTask(root, attributes, 0)).lines;
+    }
+
+    private class DirectoryTask extends RecursiveTask<Usage> {
+        private final Path dir;
+        private final BasicFileAttributes attributes;
+        private final int depth;
+
+        DirectoryTask(Path dir, BasicFileAttributes attributes, int depth) {
+            this.dir = dir;
+            this.attributes = attributes;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Usage compute() {
+            Cancellation.check(cancellation);
+            Listing listing = cache == null ? null : cache.get(dir, attributes);
+            if (listing == null) {
+                listing = list(dir, attributes);
+            }
+            List<DirectoryTask> subdirectories = new ArrayList<>(listing.directories.size());
+            for (Path subdirectory : listing.directories) {
+                try {
+                    BasicFileAttributes subattributes = DirectoryWalker.readAttributes(subdirectory);
+                    if (subattributes.isDirectory()) {
+                        subdirectories.add(new DirectoryTask(subdirectory, subattributes, depth + 1));
+                    }
+                } catch (IOException e) {
+                    // Removed since the listing was made
+                }
+            }
+            ForkJoinTask.invokeAll(subdirectories);
+
+            long bytes = attributes.size() + listing.files;
+            List<String> lines = new ArrayList<>();
+            for (DirectoryTask subdirectory : subdirectories) {
+                Usage usage = subdirectory.join();
+                bytes += usage.bytes;
+                lines.addAll(usage.lines);
+            }
+            if (maxDepth < 0 || depth <= maxDepth) {
+                lines.add(format(bytes) + "\t" + display(dir));
+            }
+            return new Usage(bytes, lines);
+        }
+    }
+
+    // List a directory, keeping the total of everything in it but its subdirectories
+    private Listing list(Path dir, BasicFileAttributes attributes) {
+        long files = 0;
+        List<Path> directories = new ArrayList<>();
+        Metrics.fsCall(Metrics.FsCall.LIST);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                try {
+                    BasicFileAttributes entryAttributes = DirectoryWalker.readAttributes(entry);
+                    if (entryAttributes.isDirectory()) {
+                        directories.add(entry);
+                    } else {
+                        files += entryAttributes.size();
+                    }
+                } catch (NoSuchFileException e) {
+                    // Removed while we were listing
+                } catch (IOException e) {
+                    errors.accept("Unable to read file: " + display(entry));
+                }
+            }
+        } catch (IOException e) {
+            errors.accept("Unable to read directory: " + display(dir));
+            return new Listing(attributes, 0, Collections.emptyList()); // Not cached, so it is tried again
+        }
+        Collections.sort(directories);
+        Listing listing = new Listing(attributes, files, directories);
+        if (cache != null) {
+            cache.put(dir, listing);
+        }
+        return listing;
+    }
+
+    private String display(Path path) {
+        if (path.equals(root)) {
+            return displayRoot;
+        }
+        String prefix = displayRoot.endsWith(File.separator) ? displayRoot : displayRoot + File.separator;
+        return prefix + root.relativize(path);
+    }
+
+    // Kilobytes rounded up, or with -h the largest unit that keeps the number short, as du shows them
+    private String format(long bytes) {
+        if (!human) {
+            return Long.toString((bytes + 1023) / 1024);
+        }
+        if (bytes < 1024) {
+            return Long.toString(bytes);
+        }
+        String units = "KMGTPE";
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        if (value < 10) {
+            double tenths = Math.ceil(value * 10) / 10;
+            if (tenths < 10) {
+                return String.format("%.1f%c", tenths, units.charAt(unit));
+            }
+        }
+        double whole = Math.ceil(value);
+        if (whole >= 1024 && unit < units.length() - 1) {
+            return String.format("%.1f%c", 1.0, units.charAt(unit + 1));
+        }
+        return String.format("%d%c", (long) whole, units.charAt(unit));
+    }
+}
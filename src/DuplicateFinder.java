@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+// dupes: finds files with the same contents below a directory, narrowing them down in rounds that each
+// cost more than the last. The walk gives every file's size for free, and only files sharing a size can be
+// the same. Those have their first block hashed, and only files that still agree are read and hashed in
+// full. Hashing is done on the fork/join pool, a task per file. Hard links to one file are counted once,
+// since removing one of them frees nothing.
+public class DuplicateFinder {
+    private static final long PARTIAL_SIZE = 1 << 16;
+
+    private final Path root;
+    private final String displayRoot;
+    private final Checksums checksums;
+    private final Consumer<String> errors;
+    private final Cancellation cancellation = Cancellation.current();
+
+    private static class Candidate {
+        final Path path;
+        final long size;
+        final Object fileKey;
+        String partial;
+        String full;
+
+        Candidate(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.size = attributes.size();
+            this.fileKey = attributes.fileKey() != null ? attributes.fileKey() : path;
+        }
+    }
+
+    public DuplicateFinder(Path root, String displayRoot, Consumer<String> errors) {
+        this.root = root;
+        this.displayRoot = displayRoot;
+        this.checksums = new Checksums("SHA-256", errors);
+        this.errors = errors;
+    }
+
+    // Groups of two or more paths with the same contents, each sorted, largest files first
+    public List<List<String>> find() {
+        List<List<Candidate>> groups = groupBySize(walk());
+        groups = regroup(groups, false);
+        groups = regroup(groups, true);
+        groups.sort(Comparator.<List<Candidate>>comparingLong(group -> -group.get(0).size)
+                .thenComparing(group -> group.get(0).path));
+        List<List<String>> result = new ArrayList<>(groups.size());
+        for (List<Candidate> group : groups) {
+            List<String> paths = new ArrayList<>(group.size());
+            for (Candidate candidate : group) {
+                paths.add(Checksums.display(root, displayRoot, candidate.path));
+            }
+            result.add(paths);
+        }
+        return result;
+    }
+
+    // Every non-empty regular file below the root
+    private List<Candidate> walk() {
+        return new ParallelWalker<>(new ParallelWalker.Visitor<List<Candidate>>() {
+            @Override
+            public List<Candidate> visitFile(Path file, BasicFileAttributes attributes, int depth) {
+                if (!attributes.isRegularFile() || attributes.size() == 0) {
+                    return Collections.emptyList();
+                }
+                return Collections.singletonList(new Candidate(file, attributes));
+            }
+
+            @Override
+            public List<Candidate> postVisitDirectory(Path dir, BasicFileAttributes attributes,
+                                                                        int depth, List<List<Candidate>> children) {
+                List<Candidate> files = new ArrayList<>();
+                for (List<Candidate> child : children) {
+                    files.addAll(child);
+                }
+                return files;
+            }
+
+            @Override
+            public List<Candidate> visitFailed(Path path, IOException e) {
+                errors.accept("Unable to read directory: " + Checksums.display(root, displayRoot, path));
+                return Collections.emptyList();
+            }
+        }, false, true).walk(root);
+    }
+
+    // Files grouped by size, leaving out sizes only one file has and all but one link to the same file
+    private static List<List<Candidate>> groupBySize(List<Candidate> files) {
+        Map<Long, List<Candidate>> bySize = new HashMap<>();
+        Set<Object> seen = new HashSet<>();
+        for (Candidate file : files) {
+            if (seen.add(file.fileKey)) {
+                bySize.computeIfAbsent(file.size, size -> new ArrayList<>()).add(file);
+            }
+        }
+        List<List<Candidate>> groups = new ArrayList<>();
+        for (List<Candidate> group : bySize.values()) {
+            if (group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    // Hash every candidate, of its first block or in full, and split the groups by hash. A file no larger
+    // than the first block was already hashed in full.
+    private List<List<Candidate>> regroup(List<List<Candidate>> groups, boolean full) {
+        List<Candidate> pending = new ArrayList<>();
+        for (List<Candidate> group : groups) {
+            for (Candidate candidate : group) {
+                if (full && candidate.size <= PARTIAL_SIZE) {
+                    candidate.full = candidate.partial;
+                } else {
+                    pending.add(candidate);
+                }
+            }
+        }
+        hashAll(pending, full);
+
+        List<List<Candidate>> result = new ArrayList<>();
+        for (List<Candidate> group : groups) {
+            Map<String, List<Candidate>> byHash = new HashMap<>();
+            for (Candidate candidate : group) {
+                String hash = full ? candidate.full : candidate.partial;
+                if (hash != null) {
+                    byHash.computeIfAbsent(hash, key -> new ArrayList<>()).add(candidate);
+                }
+            }
+            for (List<Candidate> same : byHash.values()) {
+                if (same.size() > 1) {
+                    same.sort(Comparator.comparing(candidate -> candidate.path));
+                    result.add(same);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void hashAll(List<Candidate> candidates, boolean full) {
+        List<RecursiveAction> tasks = new ArrayList<>(candidates.size());
+        for (Candidate candidate : candidates) {
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    Cancellation.check(cancellation);
+                    try {
+                        String hash = Checksums.hex(checksums.digest(candidate.path, full ? Long.MAX_VALUE : PARTIAL_SIZE));
+                        if (full) {
+                            candidate.full = hash;
+                        } else {
+                            candidate.partial = hash;
+                        }
+                    } catch (IOException e) {
+                        errors.accept("Error reading file: " + Checksums.display(root, displayRoot, candidate.path));
+                    }
+                }
+            });
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+    }
+}
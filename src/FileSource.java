@@ -0,0 +1,295 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+// Lines of a file scanned directly on its bytes.
+// Small files are read into one heap buffer, larger ones are memory-mapped window by window, and a
+// line is only decoded into a String once it is actually handed to the next stage.
+public class FileSource implements LineSource {
+    private static final int MAP_THRESHOLD = 1 << 20;
+    private static final int MAP_WINDOW = 1 << 26;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE - 8;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final Charset charset;
+    private final Cancellation cancellation = Cancellation.current();
+
+    // The current window always ends on a line boundary, so no line is ever split across two windows
+    private ByteBuffer window = ByteBuffer.allocate(0);
+    private long windowStart;
+    private int position = 0;
+    private byte[] scratch = new byte[256];
+    private ByteBuffer view;
+    private ByteBuffer viewed;
+
+    // Search state: the bounds of the selected line and, for inverted searches, the next match ahead
+    private int lineStart;
+    private int lineEnd;
+    private int pendingHit = -1;
+    private boolean countingLines = false;
+    private long lineNumber = 0;
+
+    public FileSource(File file, Charset charset) throws IOException {
+        this(file, charset, 0, Long.MAX_VALUE);
+    }
+
+    // Only the bytes in [from, to) of the file, which should start and end on line boundaries
+    public FileSource(File file, Charset charset, long from, long to) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.start = from;
+        this.end = Math.min(to, channel.size());
+        this.charset = charset;
+        this.windowStart = from;
+    }
+
+    // Newline scanning on raw bytes only works for charsets where '\n' can't appear inside another character
+    public static boolean supports(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.newEncoder().maxBytesPerChar() == 1;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    @Override
+    public String nextLine() throws IOException {
+        if (position == window.limit() && !nextWindow()) {
+            return null;
+        }
+        int end = indexOf(window, (byte) '\n', position, window.limit());
+        if (end < 0) {
+            end = window.limit(); // Last line of the file without a terminator
+        }
+        String line = decode(position, end);
+        position = Math.min(end + 1, window.limit());
+        lineNumber++;
+        return line;
+    }
+
+    // Lines are scanned as bytes in this charset, so they can be handed on undecoded
+    @Override
+    public Charset byteCharset() {
+        return charset;
+    }
+
+    @Override
+    public ByteBuffer nextLineBytes() throws IOException {
+        if (position == window.limit() && !nextWindow()) {
+            return null;
+        }
+        int end = indexOf(window, (byte) '\n', position, window.limit());
+        if (end < 0) {
+            end = window.limit();
+        }
+        ByteBuffer line = view(position, end);
+        position = Math.min(end + 1, window.limit());
+        lineNumber++;
+        return line;
+    }
+
+    // Keep track of line numbers while searching, at the cost of counting the newlines that are skipped
+    public void setLineCounting(boolean countingLines) {
+        this.countingLines = countingLines;
+    }
+
+    // Number of the line most recently returned, which nextMatch only keeps up to date with line counting on
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+    // The next line that matches the searcher (or doesn't, when inverted), skipping everything else undecoded
+    public String nextMatch(LiteralSearcher searcher, boolean invert) throws IOException {
+        return advance(searcher, invert) ? decode(lineStart, lineEnd) : null;
+    }
+
+    // The next selected line's bytes, as nextLineBytes() returns them
+    public ByteBuffer nextMatchBytes(LiteralSearcher searcher, boolean invert) throws IOException {
+        return advance(searcher, invert) ? view(lineStart, lineEnd) : null;
+    }
+
+    // Count the matching lines of the rest of the file without decoding any of them
+    public long countMatches(LiteralSearcher searcher, boolean invert) throws IOException {
+        long matches = 0;
+        while (advance(searcher, invert)) {
+            matches++;
+        }
+        return matches;
+    }
+
+    // Find the bounds of the next selected line, leaving them in lineStart and lineEnd
+    private boolean advance(LiteralSearcher searcher, boolean invert) throws IOException {
+        while (position < window.limit() || nextWindow()) {
+            int limit = window.limit();
+            if (invert) {
+                if (pendingHit < position) {
+                    pendingHit = searcher.indexIn(window, position, limit);
+                    if (pendingHit < 0) {
+                        pendingHit = Integer.MAX_VALUE; // No match left in this window
+                    }
+                }
+                int end = indexOf(window, (byte) '\n', position, limit);
+                if (end < 0) {
+                    end = limit;
+                }
+                int start = position;
+                position = Math.min(end + 1, limit);
+                lineNumber++;
+                if (pendingHit > end) {
+                    lineStart = start;
+                    lineEnd = end;
+                    return true;
+                }
+                continue;
+            }
+            int hit = searcher.indexIn(window, position, limit);
+            if (hit < 0) {
+                if (countingLines) {
+                    lineNumber += count(window, (byte) '\n', position, limit);
+                }
+                position = limit;
+                continue;
+            }
+            int newline = lastIndexOf(window, (byte) '\n', position, hit);
+            lineStart = newline < 0 ? position : newline + 1;
+            if (countingLines) {
+                lineNumber += count(window, (byte) '\n', position, lineStart) + 1;
+            }
+            int end = indexOf(window, (byte) '\n', hit + searcher.length(), limit);
+            lineEnd = end < 0 ? limit : end;
+            position = Math.min(lineEnd + 1, limit);
+            return true;
+        }
+        return false;
+    }
+
+    // Copy the unread part of the file to the target without passing it through the heap
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long from = windowStart + position;
+        long transferred = 0;
+        while (from + transferred < end) {
+            Metrics.fsCall(Metrics.FsCall.TRANSFER);
+            transferred += channel.transferTo(from + transferred, end - from - transferred, target);
+        }
+        windowStart = end;
+        window = ByteBuffer.allocate(0);
+        position = 0;
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Move to the window following the current one, trimmed back to its last newline
+    private boolean nextWindow() throws IOException {
+        long from = windowStart + window.limit();
+        if (from >= end) {
+            return false;
+        }
+        Cancellation.check(cancellation);
+        long remaining = end - from;
+        int length = (int) Math.min(remaining, end - start <= MAP_THRESHOLD ? MAP_THRESHOLD : MAP_WINDOW);
+        while (true) {
+            ByteBuffer buffer = read(from, length);
+            if (length == remaining) {
+                window = buffer;
+                break;
+            }
+            int lastNewline = lastIndexOf(buffer, (byte) '\n', 0, length);
+            if (lastNewline >= 0) {
+                buffer.limit(lastNewline + 1);
+                window = buffer;
+                break;
+            }
+            if (length == MAX_WINDOW) {
+                throw new IOException("Line too long to scan");
+            }
+            length = (int) Math.min(remaining, Math.min((long) length * 2, MAX_WINDOW));
+        }
+        windowStart = from;
+        position = 0;
+        pendingHit = -1;
+        return true;
+    }
+
+    private ByteBuffer read(long from, int length) throws IOException {
+        if (end - start > MAP_THRESHOLD) {
+            Metrics.fsCall(Metrics.FsCall.MAP);
+            return channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            Metrics.fsCall(Metrics.FsCall.READ);
+            if (channel.read(buffer, from + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // The window's bytes in [start, end), less a trailing '\r' as decoding drops it, through one reused view
+    private ByteBuffer view(int start, int end) {
+        if (end > start && window.get(end - 1) == '\r') {
+            end--;
+        }
+        if (view == null || viewed != window) {
+            view = window.duplicate();
+            viewed = window;
+        }
+        view.limit(end).position(start);
+        return view;
+    }
+
+    private String decode(int start, int end) {
+        if (end > start && window.get(end - 1) == '\r') {
+            end--; // Treat "\r\n" like BufferedReader does
+        }
+        int length = end - start;
+        if (window.hasArray()) {
+            return new String(window.array(), window.arrayOffset() + start, length, charset);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        window.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, charset);
+    }
+
+    static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int lastIndexOf(ByteBuffer buffer, byte b, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int count(ByteBuffer buffer, byte b, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+// Copies, deletes and moves whole trees with the parallel walker, every file getting a task of its own.
+// File data goes channel to channel with transferTo, so it never passes through the heap. The walk runs on
+// a pool sized for blocking I/O rather than for the cores, and a semaphore shared by every operation
+// bounds how many files are being copied or deleted at once, so several big operations don't swamp the
+// disk. Operations running longer than a second report their progress every second.
+// Copies keep every file's and directory's permission bits, as cp does; modification times are kept when
+// asked for, and always when a move has to copy.
+public class FileTree {
+    private static final int IO_CONCURRENCY = Math.max(4, Math.min(16, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final long TRANSFER_CHUNK = 1 << 26;
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+    private static final ForkJoinPool IO_POOL = new ForkJoinPool(IO_CONCURRENCY, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("tree-io-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }, null, false);
+    private static final Semaphore IO_PERMITS = new Semaphore(IO_CONCURRENCY);
+    private static final ScheduledExecutorService REPORTER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "tree-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Consumer<String> messages;
+    private final Consumer<String> errors;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Cancellation cancellation = Cancellation.current();
+
+    // Progress goes to messages and every file that can't be handled to errors, from any thread
+    public FileTree(Consumer<String> messages, Consumer<String> errors) {
+        this.messages = messages;
+        this.errors = errors;
+    }
+
+    // Files handled so far
+    public long files() {
+        return files.sum();
+    }
+
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    // Copy a file or a whole directory to target, merging into target if it is an existing directory, with
+    // the source's modification times when preserveTimes is set. Returns whether everything was copied.
+    public boolean copy(Path source, Path target, boolean preserveTimes) {
+        return withProgress("Copying", () -> {
+            ParallelWalker.Visitor<Boolean> visitor = new CopyVisitor(source, target, preserveTimes);
+            return new ParallelWalker<>(visitor, true, false, IO_POOL).walk(source);
+        });
+    }
+
+    // Delete a file or a whole directory; returns whether everything was deleted
+    public boolean delete(Path root) {
+        return withProgress("Removing", () -> new ParallelWalker<>(new DeleteVisitor(), true, false, IO_POOL).walk(root));
+    }
+
+    // Rename when source and target are on the same filesystem, otherwise copy and then delete the source.
+    // The source is only deleted once all of it has been copied.
+    public boolean move(Path source, Path target) throws IOException {
+        try {
+            Metrics.fsCall(Metrics.FsCall.RENAME);
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (AtomicMoveNotSupportedException e) {
+            return copy(source, target, true) && delete(source);
+        }
+    }
+
+    private boolean withProgress(String action, BooleanSupplier operation) {
+        long started = files.sum();
+        ScheduledFuture<?> reporter = REPORTER.scheduleAtFixedRate(
+                () -> messages.accept(action + ": " + (files.sum() - started) + " files, " + bytes.sum() + " bytes"),
+                PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            return operation.getAsBoolean();
+        } finally {
+            reporter.cancel(false);
+        }
+    }
+
+    private static boolean allTrue(List<Boolean> results) {
+        for (Boolean result : results) {
+            if (!result) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class CopyVisitor implements ParallelWalker.Visitor<Boolean> {
+        private final Path source;
+        private final Path target;
+        private final boolean preserveTimes;
+
+        CopyVisitor(Path source, Path target, boolean preserveTimes) {
+            this.source = source;
+            this.target = target;
+            this.preserveTimes = preserveTimes;
+        }
+
+        private Path targetOf(Path path) {
+            return target.resolve(source.relativize(path));
+        }
+
+        // Directories are created on the way down, before anything is copied into them
+        @Override
+        public boolean preVisitDirectory(Path dir, BasicFileAttributes attributes, int depth) {
+            Path created = targetOf(dir);
+            try {
+                Metrics.fsCall(Metrics.FsCall.CREATE);
+                Files.createDirectory(created);
+            } catch (FileAlreadyExistsException e) {
+                if (!Files.isDirectory(created, LinkOption.NOFOLLOW_LINKS)) {
+                    errors.accept("Not a directory: " + created);
+                    return false;
+                }
+            } catch (IOException e) {
+                errors.accept("Failed to create directory: " + created);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean visitFile(Path file, BasicFileAttributes attributes, int depth) {
+            Path copy = targetOf(file);
+            IO_PERMITS.acquireUninterruptibly();
+            try {
+                if (attributes.isSymbolicLink()) {
+                    Files.copy(file, copy, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+                } else if (attributes.isRegularFile()) {
+                    copyFile(file, copy);
+                    copyAttributes(file, attributes, copy);
+                } else {
+                    errors.accept("Skipped special file: " + file);
+                    return false;
+                }
+                files.increment();
+                return true;
+            } catch (IOException e) {
+                errors.accept("Failed to copy " + file + ": " + e.getMessage());
+                return false;
+            } finally {
+                IO_PERMITS.release();
+            }
+        }
+
+        // A directory's own attributes are set last, since filling it changes its time and a read-only one
+        // couldn't be filled
+        @Override
+        public Boolean postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth, List<Boolean> children) {
+            // A directory that couldn't be created was pruned, so it has no children to vouch for it
+            Path created = targetOf(dir);
+            if (!Files.isDirectory(created, LinkOption.NOFOLLOW_LINKS)) {
+                return false;
+            }
+            try {
+                copyAttributes(dir, attributes, created);
+            } catch (IOException e) {
+                errors.accept("Failed to copy attributes of " + dir + ": " + e.getMessage());
+                return false;
+            }
+            return allTrue(children);
+        }
+
+        // The source's permission bits, or its read-only flag where there are none, and its time if kept
+        private void copyAttributes(Path from, BasicFileAttributes attributes, Path to) throws IOException {
+            PosixFileAttributeView posix = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+            if (posix != null) {
+                posix.setPermissions(Files.getPosixFilePermissions(from, LinkOption.NOFOLLOW_LINKS));
+            } else if (attributes instanceof DosFileAttributes) {
+                Files.setAttribute(to, "dos:readonly", ((DosFileAttributes) attributes).isReadOnly());
+            }
+            if (preserveTimes) {
+                Files.setLastModifiedTime(to, attributes.lastModifiedTime());
+            }
+        }
+
+        @Override
+        public Boolean visitFailed(Path path, IOException e) {
+            errors.accept("Failed to read " + path + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Channel to channel, in chunks so progress moves during a large file
+    private void copyFile(Path from, Path to) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.OPEN); // The source
+        Metrics.fsCall(Metrics.FsCall.OPEN); // and the target
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                Cancellation.check(cancellation);
+                Metrics.fsCall(Metrics.FsCall.TRANSFER);
+                long transferred = in.transferTo(position, Math.min(size - position, TRANSFER_CHUNK), out);
+                if (transferred <= 0) {
+                    break; // The file shrank while it was being copied
+                }
+                position += transferred;
+                bytes.add(transferred);
+            }
+        }
+    }
+
+    private class DeleteVisitor implements ParallelWalker.Visitor<Boolean> {
+        @Override
+        public Boolean visitFile(Path file, BasicFileAttributes attributes, int depth) {
+            if (!delete(file)) {
+                return false;
+            }
+            files.increment();
+            bytes.add(attributes.size());
+            return true;
+        }
+
+        // Directories go on the way up, once everything inside them is gone
+        @Override
+        public Boolean postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth, List<Boolean> children) {
+            return allTrue(children) && delete(dir);
+        }
+
+        @Override
+        public Boolean visitFailed(Path path, IOException e) {
+            errors.accept("Failed to read " + path + ": " + e.getMessage());
+            return false;
+        }
+
+        private boolean delete(Path path) {
+            IO_PERMITS.acquireUninterruptibly();
+            try {
+                Metrics.fsCall(Metrics.FsCall.DELETE);
+                Files.delete(path);
+                return true;
+            } catch (IOException e) {
+                errors.accept("Failed to remove: " + path);
+                return false;
+            } finally {
+                IO_PERMITS.release();
+            }
+        }
+    }
+}
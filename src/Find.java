@@ -0,0 +1,292 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+// find: walks a tree with the parallel walker and streams the entries that pass every test. The tests look
+// only at the attributes the walker reads for every entry anyway, so an entry costs no extra filesystem call,
+// and only matches ever become strings. A maximum depth stops the walk from listing directories below it at
+// all. Matches travel to the reading stage in one batch per directory through a bounded queue, so the first
+// ones show up while the walk goes on, and a slow reader holds the walk back rather than letting matches
+// pile up. Entries come out in the order the walk finds them, not sorted; directories come before the
+// files in them.
+public class Find implements LineSource {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long PUT_TIMEOUT_MILLIS = 100;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final List<String> END = Collections.emptyList();
+
+    // Walks block on the queue while the reader catches up, so they get a pool of their own rather than
+    // holding up the common pool
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()), pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("find-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }, null, false);
+
+    // A test an entry must pass to be found
+    public interface Test {
+        boolean matches(Path path, BasicFileAttributes attributes);
+    }
+
+    private final Path root;
+    private final String displayRoot;
+    private final List<Test> tests;
+    private final int maxDepth;
+    private final Consumer<String> errors;
+    private final BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+
+    // Reader side state
+    private List<String> batch = Collections.emptyList();
+    private int index = 0;
+    private boolean finished = false;
+
+    // Entries are shown below displayRoot, the root as the user typed it; a maxDepth below zero means no limit
+    public Find(Path root, String displayRoot, List<Test> tests, int maxDepth, Consumer<String> errors) {
+        this.root = root;
+        this.displayRoot = displayRoot;
+        this.tests = tests;
+        this.maxDepth = maxDepth;
+        this.errors = errors;
+        ParallelWalker<String> walker = new ParallelWalker<>(new FindVisitor(), false, false, POOL);
+        POOL.execute(() -> {
+            try {
+                String top = walker.walk(root);
+                if (top != null) {
+                    put(Collections.singletonList(top)); // The root was a file
+                }
+            } catch (Throwable e) {
+                if (!closed) {
+                    failure = e;
+                }
+            } finally {
+                put(END);
+                done.countDown();
+            }
+        });
+    }
+
+    // Entries whose name matches a glob such as "*.java"
+    public static Test name(String glob) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return (path, attributes) -> {
+            Path name = path.getFileName();
+            return matcher.matches(name != null ? name : path);
+        };
+    }
+
+    // Regular files (f), directories (d) or symbolic links (l)
+    public static Test type(String type) {
+        switch (type) {
+            case "f":
+                return (path, attributes) -> attributes.isRegularFile();
+            case "d":
+                return (path, attributes) -> attributes.isDirectory();
+            case "l":
+                return (path, attributes) -> attributes.isSymbolicLink();
+            default:
+                throw new IllegalArgumentException("Invalid type: " + type);
+        }
+    }
+
+    // Size in units rounded up, as GNU find counts it: c for bytes, k, M or G, and 512-byte blocks when no
+    // unit is given
+    public static Test size(String spec) {
+        String number = spec.replaceFirst("^[+-]", "");
+        long unit = 512;
+        if (!number.isEmpty() && !Character.isDigit(number.charAt(number.length() - 1))) {
+            switch (number.charAt(number.length() - 1)) {
+                case 'c':
+                    unit = 1;
+                    break;
+                case 'k':
+                    unit = 1L << 10;
+                    break;
+                case 'M':
+                    unit = 1L << 20;
+                    break;
+                case 'G':
+                    unit = 1L << 30;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid size: " + spec);
+            }
+            spec = spec.substring(0, spec.length() - 1);
+        }
+        LongPredicate units = comparison(spec);
+        long unitSize = unit;
+        return (path, attributes) -> units.test((attributes.size() + unitSize - 1) / unitSize);
+    }
+
+    // Modified a number of whole days ago, counted from now
+    public static Test mtime(String spec) {
+        LongPredicate days = comparison(spec);
+        long now = System.currentTimeMillis();
+        return (path, attributes) -> days.test(Math.floorDiv(now - attributes.lastModifiedTime().toMillis(), DAY_MILLIS));
+    }
+
+    // A number as find's tests take it: "+n" for more than n, "-n" for less than n and "n" for exactly n
+    private static LongPredicate comparison(String spec) {
+        if (!spec.matches("[+-]?[0-9]+")) {
+            throw new IllegalArgumentException("Invalid number: " + spec);
+        }
+        long n = Long.parseLong(spec.substring(spec.charAt(0) == '+' || spec.charAt(0) == '-' ? 1 : 0));
+        if (spec.charAt(0) == '+') {
+            return value -> value > n;
+        }
+        if (spec.charAt(0) == '-') {
+            return value -> value < n;
+        }
+        return value -> value == n;
+    }
+
+    private boolean matches(Path path, BasicFileAttributes attributes) {
+        for (Test test : tests) {
+            if (!test.matches(path, attributes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String display(Path path) {
+        if (path.equals(root)) {
+            return displayRoot;
+        }
+        String prefix = displayRoot.endsWith(File.separator) ? displayRoot : displayRoot + File.separator;
+        return prefix + root.relativize(path);
+    }
+
+    // Every entry returns itself when it is found; a directory sends the files it found as one batch
+    private class FindVisitor implements ParallelWalker.Visitor<String> {
+        @Override
+        public boolean preVisitDirectory(Path dir, BasicFileAttributes attributes, int depth) {
+            if (matches(dir, attributes)) {
+                put(Collections.singletonList(display(dir)));
+            }
+            return !closed && (maxDepth < 0 || depth < maxDepth);
+        }
+
+        @Override
+        public String visitFile(Path file, BasicFileAttributes attributes, int depth) {
+            return matches(file, attributes) ? display(file) : null;
+        }
+
+        @Override
+        public String postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth, List<String> children) {
+            List<String> found = new ArrayList<>();
+            for (String child : children) {
+                if (child != null) {
+                    found.add(child);
+                }
+            }
+            if (!found.isEmpty()) {
+                put(found);
+            }
+            return null; // Already sent before its contents
+        }
+
+        @Override
+        public String visitFailed(Path path, IOException e) {
+            if (e instanceof NoSuchFileException && !path.equals(root)) {
+                return null; // Removed while we were walking
+            }
+            errors.accept("Unable to read directory: " + display(path));
+            return null;
+        }
+    }
+
+    // Hand a batch to the reader, giving up once it has stopped reading
+    private void put(List<String> lines) {
+        try {
+            while (!closed) {
+                if (queue.offer(lines, PUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String nextLine() throws IOException {
+        while (index == batch.size()) {
+            if (finished) {
+                return null;
+            }
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Find interrupted");
+            }
+            index = 0;
+            if (batch == END) {
+                finished = true;
+                rethrowFailure();
+                return null;
+            }
+        }
+        return batch.get(index++);
+    }
+
+    // Matches are waiting, or the walk is over
+    @Override
+    public boolean ready() {
+        return index < batch.size() || finished || !queue.isEmpty();
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable e = failure;
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+    // Stop the walk and wait until it has wound down
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        queue.clear();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        finished = true;
+        batch = Collections.emptyList();
+    }
+}
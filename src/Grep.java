@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+
+// A grep stage over a literal searcher, optionally confirmed by a regular expression.
+// File input is searched on its raw bytes and only matching lines are decoded; any other input is
+// filtered line by line. Either way nothing is allocated for lines that aren't emitted. With a regex the
+// searcher holds a literal every match must contain, and the regex engine only sees lines that have it.
+public class Grep {
+    private final LiteralSearcher searcher;
+    private final Matcher matcher;
+    private final boolean invert;
+    private final boolean count;
+    private final boolean lineNumbers;
+
+    public Grep(LiteralSearcher searcher, boolean invert, boolean count, boolean lineNumbers) {
+        this(searcher, null, invert, count, lineNumbers);
+    }
+
+    // The matcher is reset for every line, so the stage owns it and must not share it with another thread
+    public Grep(LiteralSearcher searcher, Matcher matcher, boolean invert, boolean count, boolean lineNumbers) {
+        this.searcher = searcher;
+        this.matcher = matcher;
+        this.invert = invert;
+        this.count = count;
+        this.lineNumbers = lineNumbers;
+    }
+
+    // The same search with a matcher of its own, for running on another thread
+    public Grep copy() {
+        Matcher ownMatcher = matcher == null ? null : matcher.pattern().matcher("");
+        return new Grep(searcher, ownMatcher, invert, count, lineNumbers);
+    }
+
+    public LineSource apply(LineSource input) {
+        // Lines that don't match the prefilter are only known not to match, so -v needs every line decoded
+        if (input instanceof FileSource && searcher.searchesBytes() && (matcher == null || !invert)) {
+            return overFile((FileSource) input);
+        }
+        return overLines(input);
+    }
+
+    private LineSource overFile(FileSource file) {
+        file.setLineCounting(lineNumbers && !count);
+        return new LineSource() {
+            private boolean counted = false;
+
+            @Override
+            public String nextLine() throws IOException {
+                if (count) {
+                    if (counted) {
+                        return null;
+                    }
+                    counted = true;
+                    return Long.toString(matcher == null ? file.countMatches(searcher, invert) : countConfirmed());
+                }
+                String line = file.nextMatch(searcher, invert);
+                while (line != null && matcher != null && !matcher.reset(line).find()) {
+                    line = file.nextMatch(searcher, invert);
+                }
+                if (line != null && lineNumbers) {
+                    return file.lineNumber() + ":" + line;
+                }
+                return line;
+            }
+
+            private long countConfirmed() throws IOException {
+                long matches = 0;
+                String line;
+                while ((line = file.nextMatch(searcher, false)) != null) {
+                    if (matcher.reset(line).find()) {
+                        matches++;
+                    }
+                }
+                return matches;
+            }
+
+            // Selected lines are already found on the bytes, so unless they need numbering or confirming by the
+            // regex they are handed on as they are
+            @Override
+            public Charset byteCharset() {
+                return matcher == null && !count && !lineNumbers ? file.charset() : null;
+            }
+
+            @Override
+            public ByteBuffer nextLineBytes() throws IOException {
+                return file.nextMatchBytes(searcher, invert);
+            }
+
+            @Override
+            public void close() throws IOException {
+                file.close();
+            }
+        };
+    }
+
+    private LineSource overLines(LineSource input) {
+        Charset inputBytes = input.byteCharset();
+        boolean passesBytes = matcher == null && !count && !lineNumbers && searcher.searchesBytes(inputBytes);
+        return new LineSource() {
+            private long lineNumber = 0;
+            private boolean counted = false;
+
+            @Override
+            public String nextLine() throws IOException {
+                if (count) {
+                    if (counted) {
+                        return null;
+                    }
+                    counted = true;
+                    long matches = 0;
+                    String line;
+                    while ((line = input.nextLine()) != null) {
+                        if (matches(line) != invert) {
+                            matches++;
+                        }
+                    }
+                    return Long.toString(matches);
+                }
+                String line;
+                while ((line = input.nextLine()) != null) {
+                    lineNumber++;
+                    if (matches(line) != invert) {
+                        return lineNumbers ? lineNumber + ":" + line : line;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public Charset byteCharset() {
+                return passesBytes ? inputBytes : null;
+            }
+
+            @Override
+            public ByteBuffer nextLineBytes() throws IOException {
+                ByteBuffer line;
+                while ((line = input.nextLineBytes()) != null) {
+                    if (searcher.matches(line) != invert) {
+                        return line;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+
+            @Override
+            public boolean ready() {
+                return input.ready();
+            }
+        };
+    }
+
+    private boolean matches(String line) {
+        return searcher.matches(line) && (matcher == null || matcher.reset(line).find());
+    }
+}
@@ -0,0 +1,443 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// The lines of a gzip file, decompressed as they are read. Lines are handed out as bytes, like a
+// FileSource's, so a pipe over a compressed file is never decoded just to be passed on.
+// A gzip file can be several members one after another, as rotated logs appended together or files written
+// in blocks are. The member being read is decompressed here, while the members after it are decompressed
+// ahead on the common pool: their starts are found by scanning the compressed bytes ahead for a gzip
+// header, and a member decompressed ahead is used once the one before it ends exactly where it starts, so
+// a header that turns up by chance inside compressed data is simply dropped. Every member's checksum and
+// length are checked. Members decompressed ahead are held in memory, so only those up to MEMBER_CAP
+// are; a larger one is decompressed here when its turn comes, keeping memory bounded however large the
+// file is.
+public class GzipSource implements LineSource {
+    private static final int INPUT_BLOCK_SIZE = 1 << 18;
+    // Members decompressed ahead start small, since they are often small
+    private static final int AHEAD_BLOCK_SIZE = 1 << 16;
+    private static final int LINE_BLOCK_SIZE = 1 << 18;
+    private static final int SCAN_BLOCK_SIZE = 1 << 20;
+    private static final long SCAN_WINDOW = 1 << 24;
+    private static final int MEMBER_CAP = 1 << 22;
+    private static final int LOOKAHEAD = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+
+    private final FileChannel channel;
+    private final long size;
+    private final Charset charset;
+    private final Cancellation cancellation = Cancellation.current();
+    private volatile boolean closed = false;
+
+    // Members being decompressed ahead, by where they would start
+    private final TreeMap<Long, CompletableFuture<Decoded>> ahead = new TreeMap<>();
+    // The compressed bytes scanned for headers so far, and the block being scanned
+    private long scanned = 0;
+    private final byte[] scanBlock = new byte[SCAN_BLOCK_SIZE];
+    private long scanStart = 0;
+    private int scanLength = 0;
+    // The member being decompressed here, or a member decompressed ahead being handed out
+    private Member member;
+    private Decoded decoded;
+    private int decodedPosition;
+
+    // Decompressed bytes not yet handed out as lines
+    private byte[] block = new byte[LINE_BLOCK_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(block);
+    private int start = 0;
+    private int limit = 0;
+    private int searched = 0;
+    private boolean ended = false;
+
+    public GzipSource(File file, Charset charset) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.charset = charset;
+        try {
+            this.size = channel.size();
+            next(0);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Whether the file starts with the gzip magic bytes
+    public static boolean isGzip(File file) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return isGzip(channel);
+        }
+    }
+
+    public static boolean isGzip(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        Metrics.fsCall(Metrics.FsCall.READ);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+            // Read both bytes
+        }
+        return !magic.hasRemaining() && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b;
+    }
+
+    @Override
+    public String nextLine() throws IOException {
+        ByteBuffer line = nextLineBytes();
+        return line == null ? null : new String(line.array(), line.position(), line.remaining(), charset);
+    }
+
+    @Override
+    public Charset byteCharset() {
+        return charset;
+    }
+
+    @Override
+    public ByteBuffer nextLineBytes() throws IOException {
+        while (true) {
+            for (int i = searched; i < limit; i++) {
+                if (block[i] == '\n') {
+                    ByteBuffer line = line(start, i);
+                    start = i + 1;
+                    searched = start;
+                    return line;
+                }
+            }
+            searched = limit;
+            if (ended) {
+                if (start == limit) {
+                    return null;
+                }
+                ByteBuffer line = line(start, limit); // The last line has no newline
+                start = limit;
+                return line;
+            }
+            fill();
+        }
+    }
+
+    private ByteBuffer line(int from, int to) {
+        if (to > from && block[to - 1] == '\r') {
+            to--;
+        }
+        view.limit(to).position(from);
+        return view;
+    }
+
+    // Decompress more after what is left of the block, moving it to the front or growing the block for a
+    // line longer than it
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(block, start, block, 0, limit - start);
+            limit -= start;
+            searched -= start;
+            start = 0;
+        }
+        if (limit == block.length) {
+            byte[] larger = new byte[block.length * 2];
+            System.arraycopy(block, 0, larger, 0, limit);
+            block = larger;
+            view = ByteBuffer.wrap(block);
+        }
+        int read = read(block, limit, block.length - limit);
+        if (read < 0) {
+            ended = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    // Decompressed bytes in order, or -1 once the last member is done
+    private int read(byte[] buffer, int offset, int length) throws IOException {
+        while (true) {
+            if (decoded != null) {
+                if (decodedPosition < decoded.length) {
+                    int count = Math.min(length, decoded.length - decodedPosition);
+                    System.arraycopy(decoded.bytes, decodedPosition, buffer, offset, count);
+                    decodedPosition += count;
+                    return count;
+                }
+                long end = decoded.end;
+                decoded = null;
+                next(end);
+                continue;
+            }
+            if (member == null) {
+                return -1;
+            }
+            int count = member.inflate(buffer, offset, length);
+            if (count > 0) {
+                return count;
+            }
+            long end = member.end;
+            member.close();
+            member = null;
+            next(end);
+        }
+    }
+
+    // Go on with the member starting at offset: the one decompressed ahead if it is complete, otherwise
+    // decompressing it here. Anything after the last member that isn't a gzip header is ignored, as gzip does,
+    // but the first member is always read, so a file that only starts like gzip fails instead of reading empty.
+    private void next(long offset) throws IOException {
+        Cancellation.check(cancellation);
+        while (!ahead.isEmpty() && ahead.firstKey() < offset) {
+            ahead.pollFirstEntry(); // Headers that were really inside the member before
+        }
+        if (offset > 0 && (offset >= size || !startsMember(offset))) {
+            return;
+        }
+        CompletableFuture<Decoded> future = ahead.remove(offset);
+        decompressAhead(offset);
+        Decoded result = future == null ? null : future.join();
+        if (result != null) {
+            decoded = result;
+            decodedPosition = 0;
+        } else {
+            member = new Member(channel, offset, INPUT_BLOCK_SIZE, cancellation);
+        }
+    }
+
+    private boolean startsMember(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        Metrics.fsCall(Metrics.FsCall.READ);
+        while (header.hasRemaining() && channel.read(header, offset + header.position()) > 0) {
+            // Read the whole header start
+        }
+        return !header.hasRemaining() && isHeader(header.array(), 0);
+    }
+
+    // Magic bytes, deflate, and no reserved flags
+    private static boolean isHeader(byte[] bytes, int i) {
+        return (bytes[i] & 0xff) == 0x1f && (bytes[i + 1] & 0xff) == 0x8b && bytes[i + 2] == 8 && (bytes[i + 3] & 0xe0) == 0;
+    }
+
+    // Start decompressing the members that seem to follow the one at offset, as far as the window goes
+    private void decompressAhead(long offset) throws IOException {
+        long to = Math.min(size, offset + SCAN_WINDOW);
+        scanned = Math.max(scanned, offset + 1);
+        while (scanned < to && ahead.size() < LOOKAHEAD) {
+            if (scanned + 4 > scanStart + scanLength) {
+                if (!readScanBlock(scanned)) {
+                    scanned = size;
+                    break;
+                }
+            }
+            int i = (int) (scanned - scanStart);
+            if (scanBlock[i] == 0x1f && isHeader(scanBlock, i)) {
+                long candidate = scanned;
+                ahead.put(candidate, CompletableFuture.supplyAsync(() -> decompress(candidate), ForkJoinPool.commonPool()));
+            }
+            scanned++;
+        }
+    }
+
+    // Read the compressed bytes from position on, returning false when too few are left to hold a header
+    private boolean readScanBlock(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(scanBlock, 0, (int) Math.min(scanBlock.length, size - position));
+        Metrics.fsCall(Metrics.FsCall.READ);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // Fill the block
+        }
+        scanStart = position;
+        scanLength = buffer.position();
+        return scanLength >= 4;
+    }
+
+    // A whole member decompressed into memory, or null when there is no valid member at offset or it is too
+    // large to hold; either way it is decompressed in order if it turns out to be needed
+    private Decoded decompress(long offset) {
+        try (Member candidate = new Member(channel, offset, AHEAD_BLOCK_SIZE, cancellation)) {
+            byte[] bytes = new byte[AHEAD_BLOCK_SIZE];
+            int length = 0;
+            while (!closed) {
+                if (length == bytes.length) {
+                    if (bytes.length >= MEMBER_CAP) {
+                        return null;
+                    }
+                    byte[] larger = new byte[Math.min(MEMBER_CAP, bytes.length * 2)];
+                    System.arraycopy(bytes, 0, larger, 0, length);
+                    bytes = larger;
+                }
+                int count = candidate.inflate(bytes, length, bytes.length - length);
+                if (count <= 0) {
+                    return new Decoded(bytes, length, candidate.end);
+                }
+                length += count;
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static class Decoded {
+        final byte[] bytes;
+        final int length;
+        final long end;
+
+        Decoded(byte[] bytes, int length, long end) {
+            this.bytes = bytes;
+            this.length = length;
+            this.end = end;
+        }
+    }
+
+    // One member: its header, the deflate stream and the trailer checking it, read from the file in blocks
+    private static class Member implements Closeable {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final FileChannel channel;
+        private final Cancellation cancellation;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] input;
+        private long inputOffset;
+        private int inputLength = 0;
+        private int inputPosition = 0;
+        private long produced = 0;
+        // Where the next member would start, once this one is done
+        long end = -1;
+
+        Member(FileChannel channel, long offset, int blockSize, Cancellation cancellation) throws IOException {
+            this.channel = channel;
+            this.input = new byte[blockSize];
+            this.cancellation = cancellation;
+            this.inputOffset = offset;
+            try {
+                readHeader();
+            } catch (IOException e) {
+                inflater.end();
+                throw e;
+            }
+            inflater.setInput(input, inputPosition, inputLength - inputPosition);
+        }
+
+        private void readHeader() throws IOException {
+            if (readByte() != 0x1f || readByte() != 0x8b || readByte() != 8) {
+                throw new ZipException("Not in gzip format");
+            }
+            int flags = readByte();
+            if ((flags & 0xe0) != 0) {
+                throw new ZipException("Unsupported gzip flags");
+            }
+            skip(6); // Modification time, extra flags and operating system
+            if ((flags & FEXTRA) != 0) {
+                skip(readByte() | readByte() << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                while (readByte() != 0) {
+                    // Skip the original file name
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readByte() != 0) {
+                    // Skip the comment
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                skip(2);
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (inputPosition == inputLength && !refill()) {
+                throw new EOFException("Unexpected end of gzip file");
+            }
+            return input[inputPosition++] & 0xff;
+        }
+
+        private void skip(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                readByte();
+            }
+        }
+
+        // Read the next block of the file after the current one
+        private boolean refill() throws IOException {
+            Cancellation.check(cancellation);
+            inputOffset += inputLength;
+            inputPosition = 0;
+            Metrics.fsCall(Metrics.FsCall.READ);
+            inputLength = Math.max(0, channel.read(ByteBuffer.wrap(input), inputOffset));
+            return inputLength > 0;
+        }
+
+        // Decompressed bytes, or -1 once the member and its trailer are done
+        int inflate(byte[] buffer, int offset, int length) throws IOException {
+            while (end < 0) {
+                int count;
+                try {
+                    count = inflater.inflate(buffer, offset, length);
+                } catch (DataFormatException e) {
+                    throw new ZipException("Corrupt gzip data: " + e.getMessage());
+                }
+                if (count > 0) {
+                    crc.update(buffer, offset, count);
+                    produced += count;
+                    return count;
+                }
+                if (inflater.finished()) {
+                    readTrailer();
+                } else if (inflater.needsInput()) {
+                    if (!refill()) {
+                        throw new EOFException("Unexpected end of gzip file");
+                    }
+                    inflater.setInput(input, 0, inputLength);
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("Corrupt gzip data");
+                }
+            }
+            return -1;
+        }
+
+        private void readTrailer() throws IOException {
+            inputPosition = inputLength - inflater.getRemaining();
+            long checksum = readInt();
+            long length = readInt();
+            if (checksum != crc.getValue() || length != (produced & 0xffffffffL)) {
+                throw new ZipException("Corrupt gzip data: checksum mismatch");
+            }
+            end = inputOffset + inputPosition;
+        }
+
+        private long readInt() throws IOException {
+            return (readByte() | readByte() << 8 | readByte() << 16 | (long) readByte() << 24);
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Map.Entry<Long, CompletableFuture<Decoded>> entry : ahead.entrySet()) {
+            entry.getValue().cancel(false);
+        }
+        ahead.clear();
+        if (member != null) {
+            member.close();
+            member = null;
+        }
+        decoded = null;
+        ended = true;
+        start = limit;
+        channel.close();
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+// A command line running in the background, started with a trailing '&'. It runs on a thread of its own
+// with its own cancellation token; its output collects in a temporary file until the shell reports it, so
+// a job that prints a lot costs disk rather than heap. Killing a job cancels the token, which the walking
+// and reading loops check, and interrupts the job's thread in case it is waiting.
+public class Job {
+    public enum State {
+        RUNNING("Running"),
+        DONE("Done"),
+        FAILED("Failed"),
+        KILLED("Killed");
+
+        private final String label;
+
+        State(String label) {
+            this.label = label;
+        }
+    }
+
+    // Threads are daemons so a job left running never keeps the shell alive
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "job");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int id;
+    private final String command;
+    private final Path output;
+    private final Cancellation cancellation;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile State state = State.RUNNING;
+    private Thread thread;
+
+    // Start the task, which returns whether it ran without errors, on behalf of the token
+    public Job(int id, String command, Path output, Cancellation cancellation, BooleanSupplier task) {
+        this.id = id;
+        this.command = command;
+        this.output = output;
+        this.cancellation = cancellation;
+        EXECUTOR.execute(() -> run(task));
+    }
+
+    private void run(BooleanSupplier task) {
+        synchronized (this) {
+            thread = Thread.currentThread();
+        }
+        State result = State.FAILED;
+        try {
+            result = Cancellation.call(cancellation, task::getAsBoolean) ? State.DONE : State.FAILED;
+        } catch (CancellationException e) {
+            result = State.KILLED;
+        } catch (RuntimeException e) {
+            // Reported as failed
+        } finally {
+            synchronized (this) {
+                thread = null;
+            }
+            Thread.interrupted(); // Don't leak a kill into the next job that reuses this thread
+            state = cancellation.isCancelled() ? State.KILLED : result;
+            done.countDown();
+        }
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    // Cancel the job and wake it if it is waiting; it stops at the next check
+    public void kill() {
+        cancellation.cancel();
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    // Copy what the job printed and delete it; only for a job that has finished
+    public void copyOutput(OutputStream out) throws IOException {
+        try {
+            Metrics.fsCall(Metrics.FsCall.READ);
+            Files.copy(output, out);
+        } finally {
+            Metrics.fsCall(Metrics.FsCall.DELETE);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    // The job as "jobs" lists it
+    public String status() {
+        return String.format("[%d] %-8s %s", id, state.label, command) + (state == State.RUNNING ? " &" : "");
+    }
+}
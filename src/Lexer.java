@@ -0,0 +1,188 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits a command line into pipe stages in a single left-to-right scan.
+// Words are separated by whitespace; double quotes group words and are removed; a backslash escapes
+// the next character when that character would otherwise mean something to the lexer; '|' separates
+// stages and '>' or '>>' redirects a stage's output to the file named by the following word. '2>' and
+// '2>>' do the same for the shell's messages, and '&>' and '&>>' send both to one file. A '&' ending the
+// line runs the whole line in the background.
+public class Lexer {
+    private static final int NO_TARGET = 0;
+    private static final int OUTPUT_TARGET = 1;
+    private static final int ERROR_TARGET = 2;
+    private static final int BOTH_TARGET = 3;
+
+    public static class Stage {
+        public final List<String> words = new ArrayList<>();
+        public String outputFile;
+        public boolean append;
+        public String errorFile;
+        public boolean errorAppend;
+        // Set on the last stage when the line ends with '&'
+        public boolean background;
+
+        public String command() {
+            return words.get(0);
+        }
+
+        public String[] args() {
+            return words.subList(1, words.size()).toArray(new String[0]);
+        }
+    }
+
+    private Lexer() {
+    }
+
+    // The stages of the line, or an empty list for a blank line
+    public static List<Stage> parse(String input) {
+        List<Stage> stages = new ArrayList<>();
+        Stage stage = new Stage();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean quoted = false;
+        boolean inQuotes = false;
+        boolean background = false;
+        int expectTarget = NO_TARGET;
+        int length = input.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            if (inQuotes) {
+                if (c == '"') {
+                    inQuotes = false;
+                } else if (c == '\\' && i + 1 < length && (input.charAt(i + 1) == '"' || input.charAt(i + 1) == '\\')) {
+                    word.append(input.charAt(++i));
+                } else {
+                    word.append(c);
+                }
+                continue;
+            }
+            switch (c) {
+                case '"':
+                    inQuotes = true;
+                    inWord = true;
+                    quoted = true;
+                    break;
+                case '\\':
+                    // Anything else keeps its backslash, so Windows paths can be typed as they are
+                    if (i + 1 < length && isSpecial(input.charAt(i + 1))) {
+                        c = input.charAt(++i);
+                    }
+                    word.append(c);
+                    inWord = true;
+                    break;
+                case '&':
+                    if (isBlankFrom(input, i + 1)) {
+                        background = true;
+                        i = length;
+                        break;
+                    }
+                    if (i + 1 >= length || input.charAt(i + 1) != '>') {
+                        word.append(c);
+                        inWord = true;
+                        break;
+                    }
+                    i++; // "&>" redirects output and messages alike
+                    // fall through
+                case '|':
+                case '>':
+                    int target = c == '&' ? BOTH_TARGET : OUTPUT_TARGET;
+                    if (c == '>' && inWord && !quoted && word.length() == 1 && word.charAt(0) == '2') {
+                        target = ERROR_TARGET; // "2>" is an operator, not a word followed by '>'
+                        word.setLength(0);
+                        inWord = false;
+                    }
+                    if (inWord) {
+                        expectTarget = finishWord(stage, word, expectTarget);
+                        inWord = false;
+                        quoted = false;
+                    }
+                    if (expectTarget != NO_TARGET) {
+                        throw new IllegalArgumentException("missing file name after '>'");
+                    }
+                    if (c == '|') {
+                        if (stage.words.isEmpty()) {
+                            throw new IllegalArgumentException("missing command before '|'");
+                        }
+                        stages.add(stage);
+                        stage = new Stage();
+                    } else {
+                        boolean append = i + 1 < length && input.charAt(i + 1) == '>';
+                        if (append) {
+                            i++;
+                        }
+                        if (target != ERROR_TARGET) {
+                            stage.append = append;
+                        }
+                        if (target != OUTPUT_TARGET) {
+                            stage.errorAppend = append;
+                        }
+                        expectTarget = target;
+                    }
+                    break;
+                default:
+                    if (Character.isWhitespace(c)) {
+                        if (inWord) {
+                            expectTarget = finishWord(stage, word, expectTarget);
+                            inWord = false;
+                            quoted = false;
+                        }
+                    } else {
+                        word.append(c);
+                        inWord = true;
+                    }
+            }
+        }
+
+        if (inQuotes) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        if (inWord) {
+            expectTarget = finishWord(stage, word, expectTarget);
+        }
+        if (expectTarget != NO_TARGET) {
+            throw new IllegalArgumentException("missing file name after '>'");
+        }
+        if (stage.words.isEmpty()) {
+            if (!stages.isEmpty() || stage.outputFile != null || stage.errorFile != null || background) {
+                throw new IllegalArgumentException("missing command");
+            }
+            return stages;
+        }
+        stage.background = background;
+        stages.add(stage);
+        return stages;
+    }
+
+    // Whether only whitespace follows, stopping at the first character that isn't, so checking every '&'
+    // only reads the whitespace right after it and the scan stays linear
+    private static boolean isBlankFrom(String input, int from) {
+        for (int i = from; i < input.length(); i++) {
+            if (!Character.isWhitespace(input.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpecial(char c) {
+        return Character.isWhitespace(c) || c == '"' || c == '\\' || c == '|' || c == '>' || c == '&';
+    }
+
+    // Hand the finished word to the stage, as its redirection target if one is pending
+    private static int finishWord(Stage stage, StringBuilder word, int expectTarget) {
+        String text = word.toString();
+        word.setLength(0);
+        if (expectTarget == NO_TARGET) {
+            stage.words.add(text);
+        }
+        if (expectTarget == OUTPUT_TARGET || expectTarget == BOTH_TARGET) {
+            stage.outputFile = text;
+        }
+        if (expectTarget == ERROR_TARGET || expectTarget == BOTH_TARGET) {
+            stage.errorFile = text;
+        }
+        return NO_TARGET;
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+// A pull-based stream of lines flowing between the stages of a pipe.
+// Each stage pulls from the one before it, so only the line currently in flight is held in memory,
+// and a stage that stops pulling simply closes its upstream.
+public interface LineSource extends Closeable {
+    LineSource EMPTY = () -> null;
+
+    // Return the next line without its terminator, or null once the stream is exhausted
+    String nextLine() throws IOException;
+
+    // Release whatever the stage holds and stop its upstream from producing more lines
+    @Override
+    default void close() throws IOException {
+    }
+
+    // Whether nextLine() can answer without waiting for more input to arrive, as it can't when following a
+    // file. Stages holding lines back for efficiency pass them on before asking a source that isn't ready.
+    default boolean ready() {
+        return true;
+    }
+
+    // The charset of the bytes nextLineBytes() hands out, or null when the stage only produces strings.
+    // Stages that don't need characters pass their upstream's bytes on, so a pipe whose stages all allow it
+    // is never decoded and encoded again on the way to its output.
+    default Charset byteCharset() {
+        return null;
+    }
+
+    // The next line's bytes without its terminator, between the buffer's position and limit, or null once the
+    // stream is exhausted. Only called when byteCharset() isn't null, and the buffer is only good until the
+    // next call. A consumer reads a stage either as lines or as bytes, never both.
+    default ByteBuffer nextLineBytes() throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    // Lines of an in-memory text, split lazily on '\n'
+    static LineSource of(CharSequence text) {
+        return new LineSource() {
+            private int position = 0;
+
+            @Override
+            public String nextLine() {
+                int length = text.length();
+                if (position >= length) {
+                    return null;
+                }
+                int start = position;
+                while (position < length && text.charAt(position) != '\n') {
+                    position++;
+                }
+                String line = text.subSequence(start, position).toString();
+                position++; // Skip the newline
+                return line;
+            }
+        };
+    }
+
+    // Lines already collected in memory
+    static LineSource of(Iterable<String> lines) {
+        Iterator<String> iterator = lines.iterator();
+        return () -> iterator.hasNext() ? iterator.next() : null;
+    }
+
+    // Lines read incrementally from a reader, which is closed with the source
+    static LineSource of(BufferedReader reader) {
+        return new LineSource() {
+            @Override
+            public String nextLine() throws IOException {
+                return reader.readLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    // Only the lines of the upstream that satisfy the predicate
+    static LineSource filter(LineSource upstream, Predicate<String> predicate) {
+        return new LineSource() {
+            @Override
+            public String nextLine() throws IOException {
+                String line;
+                while ((line = upstream.nextLine()) != null) {
+                    if (predicate.test(line)) {
+                        return line;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                upstream.close();
+            }
+
+            @Override
+            public boolean ready() {
+                return upstream.ready();
+            }
+        };
+    }
+
+    // At most the first count lines of the upstream, which is closed as soon as they have been read
+    // so the stages before it can stop early
+    static LineSource limit(LineSource upstream, long count) {
+        return new LineSource() {
+            private long remaining = count;
+            private boolean closed = false;
+
+            @Override
+            public String nextLine() throws IOException {
+                if (remaining <= 0) {
+                    close();
+                    return null;
+                }
+                String line = upstream.nextLine();
+                if (line != null && --remaining == 0) {
+                    close();
+                }
+                return line;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    upstream.close();
+                }
+            }
+
+            @Override
+            public ByteBuffer nextLineBytes() throws IOException {
+                if (remaining <= 0) {
+                    close();
+                    return null;
+                }
+                ByteBuffer line = upstream.nextLineBytes();
+                if (line != null && --remaining == 0) {
+                    close(); // The line stays readable; closing only stops the upstream from producing more
+                }
+                return line;
+            }
+
+            @Override
+            public boolean ready() {
+                return remaining <= 0 || upstream.ready();
+            }
+
+            @Override
+            public Charset byteCharset() {
+                return upstream.byteCharset();
+            }
+        };
+    }
+}
@@ -0,0 +1,205 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Boyer-Moore-Horspool search for a fixed pattern, prepared once and reused for every line or buffer.
+// Byte buffers are searched in place, optionally folding ASCII case, so nothing is allocated for the
+// text that doesn't match.
+public class LiteralSearcher {
+    private final String pattern;
+    private final boolean ignoreCase;
+    private static final int SHORT_PATTERN = 4;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Charset charset;
+    private final byte[] bytes;
+    private final int[] skip = new int[256];
+
+    public LiteralSearcher(String pattern, boolean ignoreCase, Charset charset) {
+        this.pattern = pattern;
+        this.ignoreCase = ignoreCase;
+        this.charset = charset;
+        this.bytes = encode(pattern, ignoreCase, charset);
+        if (bytes != null) {
+            int length = bytes.length;
+            Arrays.fill(skip, Math.max(length, 1));
+            for (int i = 0; i < length - 1; i++) {
+                skip[bytes[i] & 0xff] = length - 1 - i;
+            }
+        }
+    }
+
+    // The pattern's bytes, or null when it can't be searched for byte by byte in this charset
+    private static byte[] encode(String pattern, boolean ignoreCase, Charset charset) {
+        if (!charset.newEncoder().canEncode(pattern)) {
+            return null;
+        }
+        if (ignoreCase) {
+            // Only ASCII letters fold the same way on bytes as they do on characters
+            for (int i = 0; i < pattern.length(); i++) {
+                if (pattern.charAt(i) > 0x7f) {
+                    return null;
+                }
+            }
+            byte[] folded = pattern.getBytes(charset);
+            for (int i = 0; i < folded.length; i++) {
+                folded[i] = fold(folded[i]);
+            }
+            return folded;
+        }
+        return pattern.getBytes(charset);
+    }
+
+    private static byte fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // Whether buffers can be searched directly instead of decoded lines
+    public boolean searchesBytes() {
+        return bytes != null;
+    }
+
+    // Whether bytes in the given charset can be searched directly
+    public boolean searchesBytes(Charset bytesCharset) {
+        return bytes != null && charset.equals(bytesCharset);
+    }
+
+    // Whether the bytes between the line's position and limit contain the pattern
+    public boolean matches(ByteBuffer line) {
+        return bytes.length == 0 || indexIn(line, line.position(), line.limit()) >= 0;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    // Index of the first occurrence in buffer[from, to), or -1
+    public int indexIn(ByteBuffer buffer, int from, int to) {
+        int length = bytes.length;
+        if (length == 0) {
+            return from < to ? from : -1;
+        }
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            int found = indexIn(buffer.array(), offset + from, offset + to);
+            return found < 0 ? -1 : found - offset;
+        }
+        int last = length - 1;
+        byte lastByte = bytes[last];
+        int i = from + last;
+        while (i < to) {
+            byte b = buffer.get(i);
+            if (ignoreCase) {
+                b = fold(b);
+            }
+            if (b == lastByte && matchesAt(buffer, i - last)) {
+                return i - last;
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
+    }
+
+    // The same search over an array, which heap buffers such as piped lines are cheaper to scan through
+    private int indexIn(byte[] array, int from, int to) {
+        if (bytes.length < SHORT_PATTERN) {
+            return indexOfShort(array, from, to);
+        }
+        int last = bytes.length - 1;
+        byte lastByte = bytes[last];
+        for (int i = from + last; i < to; ) {
+            byte b = ignoreCase ? fold(array[i]) : array[i];
+            if (b == lastByte) {
+                int start = i - last;
+                int j = 0;
+                while (j < last && (ignoreCase ? fold(array[start + j]) : array[start + j]) == bytes[j]) {
+                    j++;
+                }
+                if (j == last) {
+                    return start;
+                }
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
+    }
+
+    // A pattern this short barely lets the search skip, so instead its first byte is looked for eight bytes
+    // at a time, with the bit trick that flags the zero bytes of a word, and only the hits are checked
+    private int indexOfShort(byte[] array, int from, int to) {
+        int lastStart = to - bytes.length;
+        byte first = bytes[0];
+        long firstBytes = ONES * (first & 0xff);
+        boolean letter = ignoreCase && first >= 'a' && first <= 'z';
+        long otherBytes = letter ? ONES * ((first - ('a' - 'A')) & 0xff) : firstBytes;
+        int i = from;
+        while (i <= lastStart) {
+            if (i + Long.BYTES <= to) {
+                long word = (long) LONGS.get(array, i);
+                long hits = zeroBytes(word ^ firstBytes) | zeroBytes(word ^ otherBytes);
+                if (hits == 0) {
+                    i += Long.BYTES;
+                    continue;
+                }
+                i += Long.numberOfTrailingZeros(hits) >>> 3; // The lowest flag is always a real hit
+                if (i > lastStart) {
+                    return -1;
+                }
+            } else if ((ignoreCase ? fold(array[i]) : array[i]) != first) {
+                i++;
+                continue;
+            }
+            if (matchesAt(array, i)) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    // High bit set in the lowest zero byte of the word, and possibly in bytes above it
+    private static long zeroBytes(long word) {
+        return (word - ONES) & ~word & HIGHS;
+    }
+
+    private boolean matchesAt(byte[] array, int start) {
+        for (int j = 1; j < bytes.length; j++) {
+            if ((ignoreCase ? fold(array[start + j]) : array[start + j]) != bytes[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesAt(ByteBuffer buffer, int start) {
+        for (int j = 0; j < bytes.length - 1; j++) {
+            byte b = buffer.get(start + j);
+            if (ignoreCase) {
+                b = fold(b);
+            }
+            if (b != bytes[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether a decoded line contains the pattern
+    public boolean matches(String line) {
+        if (!ignoreCase) {
+            return line.contains(pattern);
+        }
+        int length = pattern.length();
+        for (int i = 0; i + length <= line.length(); i++) {
+            if (line.regionMatches(true, i, pattern, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
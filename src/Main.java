@@ -1,9 +1,50 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import sun.misc.Signal;
 
 public class Main {
+    private static final int BATCH_BUFFER_SIZE = 1 << 16;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
 
     public static void main(String[] args) {
+        String script = null;
+        boolean stopOnError = false;
+        String listen = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-f") && i + 1 < args.length) {
+                script = args[++i];
+            } else if (args[i].equals("-e")) {
+                stopOnError = true;
+            } else if (args[i].equals("-s") && i + 1 < args.length) {
+                dumpStatsOnExit(args[++i]);
+            } else if (args[i].equals("-l") && i + 1 < args.length) {
+                listen = args[++i];
+            } else {
+                System.out.println("Usage: java Main [-f <script>|-f -] [-e] [-s <stats.json>] [-l <socket>]");
+                System.exit(2);
+            }
+        }
+        if (script != null) {
+            System.exit(runBatch(script, stopOnError));
+        }
+        if (listen != null) {
+            try {
+                new ShellServer(listen).run();
+            } catch (IOException e) {
+                System.out.println("Error running server: " + e.getMessage());
+                System.exit(2);
+            }
+        }
+
         Shell shell = new Shell(); // Create a new shell instance
+        shell.setInteractive(true);
+        interruptOnCtrlC(shell);
         Scanner scanner = new Scanner(System.in);
         String input;
         boolean running = true;
@@ -31,4 +72,71 @@ public class Main {
         }
         scanner.close(); // Close the scanner when finished
     }
+
+    // Ctrl-C stops the command running in the foreground rather than the shell. Where the signal can't be
+    // handled, as with -Xrs, it ends the process as before.
+    private static void interruptOnCtrlC(Shell shell) {
+        try {
+            Signal.handle(new Signal("INT"), signal -> shell.interrupt());
+        } catch (IllegalArgumentException e) {
+            // Not available on this platform
+        }
+    }
+
+    // Collect statistics from the start and write them out as JSON however the process ends
+    private static void dumpStatsOnExit(String file) {
+        Metrics.setEnabled(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.write(Paths.get(file), Metrics.toJson().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Error writing statistics: " + e.getMessage());
+            }
+        }, "stats-dump"));
+    }
+
+    // Run every line of a script ("-" for standard input) back to back without prompts.
+    // Output collects in one large buffer that is flushed when full or every FLUSH_INTERVAL_MILLIS,
+    // rather than after each command. Returns the process exit status.
+    private static int runBatch(String script, boolean stopOnError) {
+        PrintStream console = System.out;
+        PrintStream buffered = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BATCH_BUFFER_SIZE), false);
+        System.setOut(buffered);
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "output-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleAtFixedRate(buffered::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        int status = 0;
+        Shell shell = new Shell();
+        try (BufferedReader reader = script.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in), BATCH_BUFFER_SIZE)
+                : new BufferedReader(new FileReader(script), BATCH_BUFFER_SIZE)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue; // Blank lines and comments
+                if (line.equalsIgnoreCase("exit")) break;
+                if (!shell.handleCommand(line)) {
+                    status = 1;
+                    if (stopOnError) {
+                        System.out.println("Stopped at line " + lineNumber + ": " + line);
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading script: " + e.getMessage());
+            status = 2;
+        } finally {
+            flusher.shutdownNow();
+            buffered.flush();
+            System.setOut(console);
+        }
+        return status;
+    }
 }
@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide instrumentation: latency histograms per command line and per pipe stage, lines and bytes
+// through every stage, error and filesystem call counts.
+// Everything is off until enabled, and while off each hook costs one volatile read. Stages are only
+// wrapped for counting when statistics are on or a Flight Recorder recording wants stage events.
+public final class Metrics {
+    public enum FsCall {
+        OPEN, READ, MAP, TRANSFER, WRITE, FORCE, LIST, STAT, CREATE, DELETE, RENAME
+    }
+
+    private static volatile boolean enabled = false;
+
+    private static final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private static final Map<String, StageStats> stages = new ConcurrentHashMap<>();
+    private static final LongAdder[] fsCalls = new LongAdder[FsCall.values().length];
+    private static final LongAdder errors = new LongAdder();
+
+    static {
+        for (int i = 0; i < fsCalls.length; i++) {
+            fsCalls[i] = new LongAdder();
+        }
+    }
+
+    private static class CommandStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder failures = new LongAdder();
+    }
+
+    private static class StageStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder linesIn = new LongAdder();
+        final LongAdder linesOut = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static void reset() {
+        commands.clear();
+        stages.clear();
+        for (LongAdder calls : fsCalls) {
+            calls.reset();
+        }
+        errors.reset();
+    }
+
+    public static void fsCall(FsCall call) {
+        if (enabled) {
+            fsCalls[call.ordinal()].increment();
+        }
+    }
+
+    public static void error() {
+        if (enabled) {
+            errors.increment();
+        }
+    }
+
+    // Record a finished command line under its shape, the command names without their arguments
+    public static void commandFinished(String shape, long nanos, boolean failed) {
+        if (!enabled) {
+            return;
+        }
+        CommandStats stats = commands.computeIfAbsent(shape, key -> new CommandStats());
+        stats.latency.record(nanos);
+        if (failed) {
+            stats.failures.increment();
+        }
+    }
+
+    // Whether stages need wrapping, checked once per command line
+    public static boolean measuringStages() {
+        return enabled || new StageEvent().isEnabled();
+    }
+
+    // Count what a stage reads from the one before it
+    public static LineSource countInput(LineSource input, Stage stage) {
+        return new LineSource() {
+            @Override
+            public String nextLine() throws IOException {
+                String line = input.nextLine();
+                if (line != null) {
+                    stage.linesIn++;
+                    stage.bytesIn += utf8Length(line) + 1;
+                }
+                return line;
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+
+            @Override
+            public boolean ready() {
+                return input.ready();
+            }
+
+            @Override
+            public Charset byteCharset() {
+                return input.byteCharset();
+            }
+
+            @Override
+            public ByteBuffer nextLineBytes() throws IOException {
+                ByteBuffer line = input.nextLineBytes();
+                if (line != null) {
+                    stage.linesIn++;
+                    stage.bytesIn += line.remaining() + 1;
+                }
+                return line;
+            }
+        };
+    }
+
+    // A stage being measured; it is timed from construction until its output runs out or is closed.
+    // Its output is pulled by one thread at a time, so the plain fields need no synchronization.
+    public static class Stage implements LineSource {
+        private final String command;
+        private final long start = System.nanoTime();
+        private final StageEvent event = new StageEvent();
+        private LineSource output = LineSource.EMPTY;
+        private long linesIn;
+        private long linesOut;
+        private long bytesIn;
+        private long bytesOut;
+        private boolean finished = false;
+
+        public Stage(String command) {
+            this.command = command;
+            event.begin();
+        }
+
+        public void setOutput(LineSource output) {
+            this.output = output;
+        }
+
+        // The stage's output as produced, for consumers that bypass line-by-line reading
+        public LineSource output() {
+            return output;
+        }
+
+        // Output that was copied without being read as lines
+        public void transferred(long bytes) {
+            bytesOut += bytes;
+        }
+
+        @Override
+        public String nextLine() throws IOException {
+            String line = output.nextLine();
+            if (line == null) {
+                finish();
+                return null;
+            }
+            linesOut++;
+            bytesOut += utf8Length(line) + 1;
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                output.close();
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public boolean ready() {
+            return output.ready();
+        }
+
+        @Override
+        public Charset byteCharset() {
+            return output.byteCharset();
+        }
+
+        @Override
+        public ByteBuffer nextLineBytes() throws IOException {
+            ByteBuffer line = output.nextLineBytes();
+            if (line == null) {
+                finish();
+                return null;
+            }
+            linesOut++;
+            bytesOut += line.remaining() + 1;
+            return line;
+        }
+
+        private void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (enabled) {
+                StageStats stats = stages.computeIfAbsent(command, key -> new StageStats());
+                stats.latency.record(System.nanoTime() - start);
+                stats.linesIn.add(linesIn);
+                stats.linesOut.add(linesOut);
+                stats.bytesIn.add(bytesIn);
+                stats.bytesOut.add(bytesOut);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = command;
+                event.linesIn = linesIn;
+                event.linesOut = linesOut;
+                event.bytesIn = bytesIn;
+                event.bytesOut = bytesOut;
+                event.commit();
+            }
+        }
+    }
+
+    // Bytes the line takes in UTF-8, without encoding it
+    private static int utf8Length(String line) {
+        int length = line.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                // Each half of a surrogate pair adds one, making four bytes for the pair
+                bytes += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+            }
+        }
+        return bytes;
+    }
+
+    // Human-readable summary for the stats command
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Commands:\n");
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+            CommandStats stats = entry.getValue();
+            report.append("  ").append(entry.getKey()).append(": ");
+            appendLatency(report, stats.latency);
+            report.append(", failures ").append(stats.failures.sum()).append('\n');
+        }
+        report.append("Stages:\n");
+        for (Map.Entry<String, StageStats> entry : new TreeMap<>(stages).entrySet()) {
+            StageStats stats = entry.getValue();
+            report.append("  ").append(entry.getKey()).append(": ");
+            appendLatency(report, stats.latency);
+            report.append(", lines ").append(stats.linesIn.sum()).append(" in ").append(stats.linesOut.sum()).append(" out")
+                    .append(", bytes ").append(stats.bytesIn.sum()).append(" in ").append(stats.bytesOut.sum()).append(" out\n");
+        }
+        report.append("Filesystem calls:");
+        for (FsCall call : FsCall.values()) {
+            report.append(' ').append(call.name().toLowerCase(Locale.ROOT)).append(' ').append(fsCalls[call.ordinal()].sum());
+        }
+        report.append("\nErrors: ").append(errors.sum());
+        return report.toString();
+    }
+
+    private static void appendLatency(StringBuilder report, LatencyHistogram latency) {
+        report.append(latency.count()).append(" runs, mean ").append(millis(latency.mean()))
+                .append(" ms, p50 ").append(millis(latency.percentile(0.5)))
+                .append(" ms, p99 ").append(millis(latency.percentile(0.99)))
+                .append(" ms, max ").append(millis(latency.max())).append(" ms");
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    // Everything recorded so far as a JSON object, latencies in microseconds
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"commands\": {");
+        String separator = "\n";
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+            CommandStats stats = entry.getValue();
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {");
+            appendLatencyJson(json, stats.latency);
+            json.append(", \"failures\": ").append(stats.failures.sum()).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"stages\": {");
+        separator = "\n";
+        for (Map.Entry<String, StageStats> entry : new TreeMap<>(stages).entrySet()) {
+            StageStats stats = entry.getValue();
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {");
+            appendLatencyJson(json, stats.latency);
+            json.append(", \"linesIn\": ").append(stats.linesIn.sum())
+                    .append(", \"linesOut\": ").append(stats.linesOut.sum())
+                    .append(", \"bytesIn\": ").append(stats.bytesIn.sum())
+                    .append(", \"bytesOut\": ").append(stats.bytesOut.sum()).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"filesystemCalls\": {");
+        separator = "";
+        for (FsCall call : FsCall.values()) {
+            json.append(separator).append(quote(call.name().toLowerCase(Locale.ROOT))).append(": ").append(fsCalls[call.ordinal()].sum());
+            separator = ", ";
+        }
+        json.append("},\n  \"errors\": ").append(errors.sum()).append("\n}\n");
+        return json.toString();
+    }
+
+    private static void appendLatencyJson(StringBuilder json, LatencyHistogram latency) {
+        json.append("\"count\": ").append(latency.count())
+                .append(", \"meanMicros\": ").append(latency.mean() / 1000)
+                .append(", \"p50Micros\": ").append(latency.percentile(0.5) / 1000)
+                .append(", \"p90Micros\": ").append(latency.percentile(0.9) / 1000)
+                .append(", \"p99Micros\": ").append(latency.percentile(0.99) / 1000)
+                .append(", \"maxMicros\": ").append(latency.max() / 1000);
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
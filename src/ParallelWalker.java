@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+// Walks a directory tree on the fork/join pool with one task per directory, so wide trees are spread over
+// every core by work stealing. Each directory's result is built from its children's results, which are
+// always handed over in listing order whatever order the tasks finished in.
+public class ParallelWalker<R> {
+    public interface Visitor<R> {
+        // Whether to list the directory at all; a pruned directory gets no children
+        default boolean preVisitDirectory(Path dir, BasicFileAttributes attributes, int depth) {
+            return true;
+        }
+
+        R visitFile(Path file, BasicFileAttributes attributes, int depth);
+
+        R postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth, List<R> children);
+
+        // A directory that couldn't be listed, or an entry whose attributes couldn't be read
+        R visitFailed(Path path, IOException e);
+    }
+
+    private final Visitor<R> visitor;
+    private final boolean forkFiles;
+    private final boolean sorted;
+    private final ForkJoinPool pool;
+    // The job the walk is for, checked before every entry and handed to the pool threads that visit them
+    private final Cancellation cancellation = Cancellation.current();
+
+    // forkFiles gives every file its own task, worth it when visiting a file does real work;
+    // sorted visits entries in path order instead of the order the directory lists them in
+    public ParallelWalker(Visitor<R> visitor, boolean forkFiles, boolean sorted) {
+        this(visitor, forkFiles, sorted, ForkJoinPool.commonPool());
+    }
+
+    // Walk on a pool of its own, such as one sized for blocking I/O rather than for the cores
+    public ParallelWalker(Visitor<R> visitor, boolean forkFiles, boolean sorted, ForkJoinPool pool) {
+        this.visitor = visitor;
+        this.forkFiles = forkFiles;
+        this.sorted = sorted;
+        this.pool = pool;
+    }
+
+    public R walk(Path root) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = DirectoryWalker.readAttributes(root);
+        } catch (IOException e) {
+            return visitor.visitFailed(root, e);
+        }
+        return pool.invoke(new EntryTask(root, attributes, 0));
+    }
+
+    private class EntryTask extends RecursiveTask<R> {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+        private final int depth;
+        private final IOException failure;
+
+        EntryTask(Path path, BasicFileAttributes attributes, int depth) {
+            this.path = path;
+            this.attributes = attributes;
+            this.depth = depth;
+            this.failure = null;
+        }
+
+        // An entry whose attributes couldn't be read
+        EntryTask(Path path, IOException failure) {
+            this.path = path;
+            this.attributes = null;
+            this.depth = -1;
+            this.failure = failure;
+        }
+
+        @Override
+        protected R compute() {
+            if (cancellation == null) {
+                return visit();
+            }
+            cancellation.check();
+            return Cancellation.call(cancellation, this::visit);
+        }
+
+        private R visit() {
+            if (failure != null) {
+                return visitor.visitFailed(path, failure);
+            }
+            if (!attributes.isDirectory()) {
+                return visitor.visitFile(path, attributes, depth);
+            }
+            if (!visitor.preVisitDirectory(path, attributes, depth)) {
+                return visitor.postVisitDirectory(path, attributes, depth, Collections.emptyList());
+            }
+            List<Path> entries = new ArrayList<>();
+            Metrics.fsCall(Metrics.FsCall.LIST);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path entry : stream) {
+                    entries.add(entry);
+                }
+            } catch (IOException e) {
+                return visitor.visitFailed(path, e);
+            }
+            if (sorted) {
+                Collections.sort(entries);
+            }
+
+            // Files that are cheap to visit are visited right here, everything else is forked
+            List<EntryTask> children = new ArrayList<>(entries.size());
+            List<EntryTask> forked = new ArrayList<>();
+            for (Path entry : entries) {
+                EntryTask child;
+                try {
+                    child = new EntryTask(entry, DirectoryWalker.readAttributes(entry), depth + 1);
+                } catch (IOException e) {
+                    child = new EntryTask(entry, e);
+                }
+                children.add(child);
+                if (child.failure == null && (child.attributes.isDirectory() || forkFiles)) {
+                    forked.add(child);
+                } else {
+                    child.invoke();
+                }
+            }
+            ForkJoinTask.invokeAll(forked);
+
+            List<R> results = new ArrayList<>(children.size());
+            for (EntryTask child : children) {
+                results.add(child.join());
+            }
+            return visitor.postVisitDirectory(path, attributes, depth, results);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Compiled regular expressions kept across commands, evicting the least recently used one when full.
+// Shared by every shell in the process, so it is synchronized.
+public class PatternCache {
+    private static final int CAPACITY = 64;
+
+    private static final Map<String, Pattern> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private PatternCache() {
+    }
+
+    // The compiled form of the expression with these flags, compiling it only on a miss
+    public static synchronized Pattern compile(String regex, int flags) {
+        String key = flags + "/" + regex;
+        Pattern pattern = CACHE.get(key);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex, flags);
+            CACHE.put(key, pattern);
+        }
+        return pattern;
+    }
+
+    // Literal text every match must start with, or "" when none can be read off the expression.
+    // Lines not containing it can be rejected without running the regex engine.
+    public static String literalPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return ""; // An alternative could match without the prefix
+        }
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = start;
+        while (end < regex.length() && "\\[](){}.*+?^$|".indexOf(regex.charAt(end)) < 0) {
+            end++;
+        }
+        // A quantifier applies to the last character only, which then may not appear at all
+        if (end < regex.length() && "*?{".indexOf(regex.charAt(end)) >= 0 && end > start) {
+            end--;
+        }
+        return regex.substring(start, end);
+    }
+}
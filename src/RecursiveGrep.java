@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// grep -r: searches every file under a directory on the fork/join pool.
+// The tree is walked in parallel with one task per entry, and files larger than a chunk are split on
+// newline boundaries. Every task fills its own buffer, and the buffers are stitched together in sorted
+// path order at the end, so the output doesn't depend on which thread finished first. Gzip files are
+// decompressed as they are searched, each by its own task, so a directory of rotated logs is decompressed
+// concurrently.
+public class RecursiveGrep implements LineSource {
+    private static final long CHUNK_SIZE = 1 << 24;
+
+    private final File root;
+    private final String displayRoot;
+    private final Supplier<Grep> grepFactory;
+    private final boolean count;
+    private final boolean lineNumbers;
+    private final Charset charset;
+    private final Consumer<String> errors;
+    // The job the search is for, handed to the pool threads that search files and chunks
+    private final Cancellation cancellation = Cancellation.current();
+    // Searched instead of walking the tree, when an index has already narrowed it down
+    private final List<Path> files;
+
+    private Iterator<List<String>> buffers;
+    private Iterator<String> lines = Collections.emptyIterator();
+
+    // The factory is called once per task, since a grep stage holds a matcher that can't be shared.
+    // Unreadable files and directories are reported to errors, from whichever thread found them.
+    public RecursiveGrep(File root, String displayRoot, Supplier<Grep> grepFactory, boolean count,
+                         boolean lineNumbers, Charset charset, Consumer<String> errors) {
+        this(root, displayRoot, null, grepFactory, count, lineNumbers, charset, errors);
+    }
+
+    // Search only the given files under root, in the given order. Files that have gone since the list was
+    // made are skipped.
+    public RecursiveGrep(File root, String displayRoot, List<Path> files, Supplier<Grep> grepFactory, boolean count,
+                         boolean lineNumbers, Charset charset, Consumer<String> errors) {
+        this.root = root;
+        this.displayRoot = displayRoot;
+        this.grepFactory = grepFactory;
+        this.count = count;
+        this.lineNumbers = lineNumbers;
+        this.charset = charset;
+        this.errors = errors;
+        this.files = files;
+    }
+
+    @Override
+    public String nextLine() throws IOException {
+        if (buffers == null) {
+            // Search lazily, so a stage running on its own thread does the work there
+            buffers = (files == null
+                    ? new ParallelWalker<>(new SearchVisitor(), true, true).walk(root.toPath())
+                    : ForkJoinPool.commonPool().invoke(new FilesTask())).iterator();
+        }
+        while (!lines.hasNext()) {
+            if (!buffers.hasNext()) {
+                return null;
+            }
+            lines = buffers.next().iterator();
+        }
+        return lines.next();
+    }
+
+    private String display(Path path) {
+        Path relative = root.toPath().relativize(path);
+        return relative.toString().isEmpty() ? displayRoot : displayRoot + File.separator + relative;
+    }
+
+    private class SearchVisitor implements ParallelWalker.Visitor<List<List<String>>> {
+        @Override
+        public List<List<String>> visitFile(Path file, BasicFileAttributes attributes, int depth) {
+            if (!attributes.isRegularFile()) {
+                return Collections.emptyList();
+            }
+            try {
+                return Collections.singletonList(search(file, display(file), attributes.size()));
+            } catch (IOException e) {
+                errors.accept("Error reading file: " + display(file));
+                return Collections.emptyList();
+            }
+        }
+
+        @Override
+        public List<List<String>> postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth,
+                                                     List<List<List<String>>> children) {
+            List<List<String>> results = new ArrayList<>();
+            for (List<List<String>> child : children) {
+                results.addAll(child);
+            }
+            return results;
+        }
+
+        @Override
+        public List<List<String>> visitFailed(Path path, IOException e) {
+            errors.accept("Unable to read directory: " + display(path));
+            return Collections.emptyList();
+        }
+    }
+
+    private class FilesTask extends RecursiveTask<List<List<String>>> {
+        @Override
+        protected List<List<String>> compute() {
+            List<RecursiveTask<List<String>>> tasks = new ArrayList<>();
+            for (Path file : files) {
+                tasks.add(new RecursiveTask<List<String>>() {
+                    @Override
+                    protected List<String> compute() {
+                        Cancellation.check(cancellation);
+                        try {
+                            BasicFileAttributes attributes = DirectoryWalker.readAttributes(file);
+                            return attributes.isRegularFile() ? search(file, display(file), attributes.size()) : null;
+                        } catch (NoSuchFileException e) {
+                            return null;
+                        } catch (IOException e) {
+                            errors.accept("Error reading file: " + display(file));
+                            return null;
+                        }
+                    }
+                });
+            }
+            List<List<String>> results = new ArrayList<>();
+            for (RecursiveTask<List<String>> task : ForkJoinTask.invokeAll(tasks)) {
+                if (task.join() != null) {
+                    results.add(task.join());
+                }
+            }
+            return results;
+        }
+    }
+
+    // Search one file, in newline-aligned chunks when it is large
+    private List<String> search(Path file, String displayPath, long size) throws IOException {
+        List<ChunkTask> chunks = new ArrayList<>();
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (GzipSource.isGzip(channel)) {
+                return searchCompressed(file, displayPath);
+            }
+            long from = 0;
+            while (from < size) {
+                long to = from + CHUNK_SIZE >= size ? size : nextLineStart(channel, from + CHUNK_SIZE);
+                chunks.add(new ChunkTask(file, from, to));
+                from = to;
+            }
+        }
+        ForkJoinTask.invokeAll(chunks);
+        return merge(chunks, displayPath);
+    }
+
+    // A compressed file can't be split, so it is searched whole, on the task that found it
+    private List<String> searchCompressed(Path file, String displayPath) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (LineSource grep = grepFactory.get().apply(new GzipSource(file.toFile(), charset))) {
+            String line;
+            while ((line = grep.nextLine()) != null) {
+                lines.add(displayPath + ":" + line);
+            }
+        }
+        return lines;
+    }
+
+    // Prefix every line with its path, turning chunk-relative line numbers into file line numbers
+    private List<String> merge(List<ChunkTask> chunks, String displayPath) throws IOException {
+        List<String> merged = new ArrayList<>();
+        if (count) {
+            long matches = 0;
+            for (ChunkTask chunk : chunks) {
+                if (chunk.failure != null) {
+                    throw chunk.failure;
+                }
+                matches += Long.parseLong(chunk.join().get(0));
+            }
+            merged.add(displayPath + ":" + matches);
+            return merged;
+        }
+        long linesBefore = 0;
+        for (ChunkTask chunk : chunks) {
+            if (chunk.failure != null) {
+                throw chunk.failure;
+            }
+            for (String line : chunk.join()) {
+                if (lineNumbers && linesBefore > 0) {
+                    int colon = line.indexOf(':');
+                    line = (linesBefore + Long.parseLong(line.substring(0, colon))) + line.substring(colon);
+                }
+                merged.add(displayPath + ":" + line);
+            }
+            linesBefore += chunk.lineCount;
+        }
+        return merged;
+    }
+
+    private class ChunkTask extends RecursiveTask<List<String>> {
+        private final Path file;
+        private final long from;
+        private final long to;
+        private long lineCount;
+        private IOException failure;
+
+        ChunkTask(Path file, long from, long to) {
+            this.file = file;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<String> compute() {
+            Cancellation.check(cancellation);
+            return Cancellation.call(cancellation, this::searchChunk);
+        }
+
+        private List<String> searchChunk() {
+            List<String> lines = new ArrayList<>();
+            try (FileSource source = new FileSource(file.toFile(), charset, from, to);
+                 LineSource grep = grepFactory.get().apply(source)) {
+                String line;
+                while ((line = grep.nextLine()) != null) {
+                    lines.add(line);
+                }
+                lineCount = source.lineNumber();
+            } catch (IOException e) {
+                failure = e;
+            }
+            return lines;
+        }
+    }
+
+    // Position just after the first newline at or after the offset, or the end of the file
+    private static long nextLineStart(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long size = channel.size();
+        while (offset < size) {
+            buffer.clear();
+            Metrics.fsCall(Metrics.FsCall.READ);
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            int newline = FileSource.indexOf(buffer, (byte) '\n', 0, read);
+            if (newline >= 0) {
+                return offset + newline + 1;
+            }
+            offset += read;
+        }
+        return size;
+    }
+}
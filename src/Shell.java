@@ -1,124 +1,362 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPInputStream;
 
-public class Shell {
+public class Shell implements Closeable {
     // Track current directory
     private File currentDirectory = new File(System.getProperty("user.dir"));
-    private OutputStream outputStream = System.out;
-    private final StringBuilder outputBuilder = new StringBuilder();
+    // Where output, messages and the prompt go when they aren't redirected
+    private final PrintStream console;
+    // File the current stage's output is redirected to, or null for the console
+    private FileChannel outputChannel;
+    // Where informational and error messages go; "2>" and "&>" point it at a file for one command line
+    private PrintStream messageStream;
+    // Encoding buffer for redirected output, allocated once and reused by every redirection
+    private ByteBuffer redirectBuffer;
+    private ChannelWriter.SyncPolicy syncPolicy = ChannelWriter.SyncPolicy.OFF;
+    // Output of the command being run; every command gets a fresh one so stages of a pipe don't mix
+    private StringBuilder outputBuilder = new StringBuilder();
+    // Directory listings kept between commands, only while "cache on" is in effect
+    private DirectoryCache directoryCache;
+    // Directory totals for du, kept alongside the listings
+    private DiskUsage.Cache usageCache;
+    // The last trigram index searched, left mapped for the next search
+    private TrigramIndex index;
+    private final Map<String, Command> commands = new HashMap<>();
+    // Background jobs by number, kept until they have finished and been reported
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+    // Set when this shell runs a background job, or while it runs a command in the foreground, so killing
+    // the job or interrupting the command stops its commands
+    private Cancellation cancellation;
+    // Guards the command running in the foreground and its thread, which interrupt() cancels from another one
+    private final Object foregroundLock = new Object();
+    private Thread foregroundThread;
+    // Cancelled when whoever the shell serves has gone away, which stops every foreground command from then on
+    private volatile Cancellation session;
+    // Whether anything went wrong in the command being handled; stages may report from their own threads
+    private volatile boolean failed;
+    // Whether someone is watching the console, so output waiting on a slow stage is shown straight away
+    private boolean interactive;
 
-    // Handle user commands
-    public void handleCommand(String input) {
-        outputBuilder.setLength(0);
-        outputStream = System.out;
-        // Split the input into commands, checking for pipes
-        String[] commands = input.split("\\s*\\|\\s*", -1);
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
 
-        // Process the first command
-        processCommand(commands[0]);
+    public Shell() {
+        this(System.out);
+    }
 
-        // Handle any piping
-        for (int i = 1; i < commands.length; i++) {
-            // Pass the output of the previous command as input to the next command
-            processPipe(commands[i]);
-        }
-        printOutput();
+    // A shell writing to its own console, such as a server session's socket. Flushing it between
+    // commands is up to the caller.
+    public Shell(PrintStream console) {
+        this.console = console;
+        this.messageStream = console;
+        // Register the builtin commands; any of them can run at any position in a pipe
+        commands.put("echo", text(this::executeEcho));
+        commands.put("ls", (args, input) -> {
+            closeInput(input);
+            return executeLs(args);
+        });
+        commands.put("mkdir", text(this::executeMkdir));
+        commands.put("rmdir", text(this::executeRmdir));
+        commands.put("rm", text(this::executeRm));
+        commands.put("cp", text(this::executeCp));
+        commands.put("cat", this::executeCat);
+        commands.put("head", this::executeHead);
+        commands.put("tail", this::executeTail);
+        commands.put("sort", this::executeSort);
+        commands.put("uniq", this::executeUniq);
+        commands.put("touch", text(this::executeTouch));
+        commands.put("mv", text(this::executeMv));
+        commands.put("cd", text(this::executeCd));
+        commands.put("pwd", text(this::executePwd));
+        commands.put("grep", this::executeGrep);
+        commands.put("index", this::executeIndex);
+        commands.put("find", this::executeFind);
+        commands.put("du", this::executeDu);
+        commands.put("sha256sum", (args, input) -> executeChecksum("SHA-256", "sha256sum", args, input));
+        commands.put("md5sum", (args, input) -> executeChecksum("MD5", "md5sum", args, input));
+        commands.put("dupes", this::executeDupes);
+        commands.put("xargs", this::executeXargs);
+        commands.put("uname", text(this::executeUname));
+        commands.put("users", text(this::executeWho));
+        commands.put("who", text(this::executeWho));
+        commands.put("help", text(this::executeHelp));
+        commands.put("cache", text(this::executeCache));
+        commands.put("fsync", text(this::executeFsync));
+        commands.put("stats", text(this::executeStats));
+        commands.put("jobs", text(this::executeJobs));
+        commands.put("wait", text(this::executeWait));
+        commands.put("kill", text(this::executeKill));
     }
 
-    public void printPrompt() {
-        System.out.print(currentDirectory.getPath() + "> ");
+    // Adapt a command that writes its output into outputBuilder and has no use for piped input
+    private Command text(Consumer<String[]> action) {
+        return (args, input) -> {
+            closeInput(input);
+            StringBuilder output = new StringBuilder();
+            outputBuilder = output;
+            action.accept(args);
+            return LineSource.of(output);
+        };
     }
 
-    String[] getArgs(String[] tokens) throws FileNotFoundException {
-        int length = tokens.length;
-        for (int i = 0; i < length; i++) {
-            tokens[i] = tokens[i].replace("\"", "");
+    // Let the stages before a command that doesn't read its input stop early
+    private static void closeInput(LineSource input) throws IOException {
+        if (input != null) {
+            input.close();
+        }
+    }
+
+    // Handle user commands, returning whether they ran without errors
+    public boolean handleCommand(String input) {
+        outputChannel = null;
+        messageStream = console;
+        failed = false;
+        // Split the input into pipe stages and their redirections in one pass
+        List<Lexer.Stage> stages;
+        try {
+            stages = Lexer.parse(input);
+        } catch (IllegalArgumentException e) {
+            printError("Invalid syntax: " + e.getMessage());
+            return false;
         }
-        if (length >= 3 && (tokens[length - 2].equals(">") || tokens[length - 2].equals(">>"))) {
-            File file = getFile(tokens[length - 1]);
-            outputStream = new FileOutputStream(file, tokens[length - 2].equals(">>"));
-            length -= 2;
+        if (stages.isEmpty()) {
+            return true;
         }
-        return Arrays.copyOfRange(tokens, 1, length);
+        if (stages.get(stages.size() - 1).background) {
+            return startJob(input, stages);
+        }
+        boolean succeeded = runForeground(input, stages);
+        reportJobs();
+        return succeeded;
     }
 
-    private void processCommand(String commandInput) {
+    // Run the stages on behalf of a token of their own, which interrupt() cancels
+    private boolean runForeground(String input, List<Lexer.Stage> stages) {
+        Cancellation token = new Cancellation();
+        synchronized (foregroundLock) {
+            cancellation = token;
+            foregroundThread = Thread.currentThread();
+        }
+        if (session != null && session.isCancelled()) {
+            token.cancel(); // Gone before interrupt() could see this command
+        }
         try {
-            String[] tokens = commandInput.split("\\s+(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-            String command = tokens[0];
-            String[] args = getArgs(tokens);
+            return Cancellation.call(token, () -> run(input, stages));
+        } catch (CancellationException e) {
+            return false;
+        } finally {
+            synchronized (foregroundLock) {
+                cancellation = null;
+                foregroundThread = null;
+                Thread.interrupted(); // Don't carry an interrupt that came too late into the next command
+            }
+            if (token.isCancelled()) {
+                console.println(); // The prompt starts on a line of its own, after the "^C"
+            }
+        }
+    }
 
-            switch (command) {
-                case "echo":
-                    executeEcho(args);
-                    break;
+    // Stop the command running in the foreground, as Ctrl-C does, and wake it if it is waiting; it stops at
+    // its next check. Nothing happens between commands.
+    public void interrupt() {
+        synchronized (foregroundLock) {
+            if (foregroundThread != null) {
+                cancellation.cancel();
+                foregroundThread.interrupt();
+            }
+        }
+    }
 
-                case "ls":
-                    executeLs(args);
-                    break;
+    // Run the parsed stages of the line in the foreground
+    private boolean run(String input, List<Lexer.Stage> stages) {
+        long started = System.nanoTime();
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        try {
+            redirectMessages(stages);
+        } catch (IOException e) {
+            printError("Error executing command: " + e.getMessage());
+            return false;
+        }
 
-                case "mkdir":
-                    executeMkdir(args);
-                    break;
+        boolean measuring = Metrics.measuringStages();
+        try {
+            LineSource output = null;
+            for (int i = 0; i < stages.size(); i++) {
+                // Pass the output of the previous command as input to the next command, running every stage
+                // but the last on its own thread
+                LineSource stageInput = output == null || output == LineSource.EMPTY ? output : new ConcurrentStage(output);
+                if (measuring) {
+                    Metrics.Stage measured = new Metrics.Stage(stages.get(i).command());
+                    measured.setOutput(processCommand(stages.get(i), stageInput == null ? null : Metrics.countInput(stageInput, measured)));
+                    output = measured;
+                } else {
+                    output = processCommand(stages.get(i), stageInput);
+                }
+                if (i < stages.size() - 1 && outputChannel != null) {
+                    // A stage redirected in the middle of a pipe writes its file and passes nothing on
+                    printOutput(output);
+                    outputChannel = null;
+                    output = LineSource.EMPTY;
+                }
+            }
+            printOutput(output);
+        } finally {
+            if (messageStream != console) {
+                messageStream.close();
+                messageStream = console;
+            }
+            Metrics.commandFinished(shape(stages), System.nanoTime() - started, failed);
+            event.end();
+            if (event.shouldCommit()) {
+                event.commandLine = input;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+        return !failed;
+    }
 
-                case "rmdir":
-                    executeRmdir(args);
-                    break;
+    // The command names of a pipe without their arguments, which statistics are grouped by
+    private static String shape(List<Lexer.Stage> stages) {
+        if (stages.size() == 1) {
+            return stages.get(0).command();
+        }
+        StringBuilder shape = new StringBuilder();
+        for (Lexer.Stage stage : stages) {
+            if (shape.length() > 0) {
+                shape.append(" | ");
+            }
+            shape.append(stage.command());
+        }
+        return shape.toString();
+    }
 
-                case "rm":
-                    executeRm(args);
-                    break;
+    // Messages are redirected for the whole command line, since stages report from their own threads.
+    // With "&>" the file is emptied here and both kinds of output are then appended to it, so neither
+    // overwrites what the other has written.
+    private void redirectMessages(List<Lexer.Stage> stages) throws IOException {
+        Lexer.Stage redirected = null;
+        for (Lexer.Stage stage : stages) {
+            if (stage.errorFile != null) {
+                redirected = stage;
+            }
+        }
+        if (redirected == null) {
+            return;
+        }
+        boolean append = redirected.errorAppend;
+        if (redirected.errorFile.equals(redirected.outputFile) && !append) {
+            openRedirect(redirected.errorFile, false).close();
+            append = true;
+        }
+        FileChannel channel = openRedirect(redirected.errorFile, append);
+        messageStream = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(channel)), true);
+    }
 
-                case "cat":
-                    executeCat(args);
-                    break;
+    private FileChannel openRedirect(String name, boolean append) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        return FileChannel.open(getFile(name).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
 
-                case "touch":
-                    executeTouch(args);
-                    break;
+    // Release what the shell holds between commands, such as the directory cache's watch service
+    @Override
+    public void close() throws IOException {
+        for (Job job : jobs.values()) {
+            job.kill();
+        }
+        if (directoryCache != null) {
+            directoryCache.close();
+            directoryCache = null;
+        }
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+    }
 
-                case "mv":
-                    executeMv(args);
-                    break;
+    // Stop foreground commands once the token is cancelled, calling interrupt() for one already running
+    public void setSession(Cancellation session) {
+        this.session = session;
+    }
 
-                case "cd":
-                    executeCd(args);
-                    break;
+    // Flush the console whenever the output has to wait for more lines, as a person following a file
+    // expects. Batch runs leave it off and let their owner flush.
+    public void setInteractive(boolean interactive) {
+        this.interactive = interactive;
+    }
 
-                case "pwd":
-                    executePwd(args);
-                    break;
+    public void printPrompt() {
+        reportJobs();
+        console.print(currentDirectory.getPath() + "> ");
+    }
 
-                case "grep":
-                    executeGrep(args, true);
-                    break;
-                
-                case "uname":
-                    executeUname(args);
-                    break;
-                
-                case "users":
-                case "who":
-                    executeWho(args);
-                    break;
+    // Report a failed command; batch mode can stop on it
+    private void printError(String message) {
+        failed = true;
+        if (cancellation != null && cancellation.isCancelled()) {
+            return; // Whatever a killed job's commands stopped with, the job is reported as killed
+        }
+        Metrics.error();
+        messageStream.println(message);
+    }
 
-                case "help":
-                    executeHelp(args);
-                    break;
+    private void printMessage(String message) {
+        messageStream.println(message);
+    }
 
+    private LineSource processCommand(Lexer.Stage stage, LineSource input) {
+        try {
+            if (stage.outputFile != null) {
+                // With "&>" the file was already emptied for the messages, and the output is appended
+                boolean append = stage.append || stage.outputFile.equals(stage.errorFile);
+                outputChannel = openRedirect(stage.outputFile, append);
+            }
+            Command command = commands.get(stage.command());
+            if (command == null) {
                 // Unrecognized command
-                default:
-                    System.out.println("Command not recognized: " + command);
+                printError("Command not recognized: " + stage.command());
+                closeInput(input);
+                return LineSource.EMPTY;
             }
+            return command.execute(stage.args(), input);
         } catch (Exception e) {
-            System.out.println("Error executing command: " + e.getMessage());
+            printError("Error executing command: " + e.getMessage());
+            try {
+                closeInput(input);
+            } catch (IOException ignored) {
+                // Already reporting a failure for this stage
+            }
+            return LineSource.EMPTY;
         }
-
     }
 
     private void executeEcho(String[] args) {
         if (args.length == 0) {
-            System.out.println("Usage: echo <message>");
+            printError("Usage: echo <message>");
             return;
         }
         for (String arg : args) {
@@ -129,117 +367,397 @@ public class Shell {
         outputBuilder.append('\n');
     }
 
-    private void executeLs(String[] args) {
+    private LineSource executeLs(String[] args) {
         boolean showHidden = false;
         boolean recursive = false;
+        boolean parallel = false;
         File dir = currentDirectory;
         for (String arg : args) {
             if (arg.startsWith("-")) {
-                if (!arg.matches("-[ar]+")) {
-                    System.out.println("Invalid option: " + arg);
-                    return;
+                if (!arg.matches("-[arP]+")) {
+                    printError("Invalid option: " + arg);
+                    return LineSource.EMPTY;
                 }
-                showHidden = arg.contains("a");
-                recursive = arg.contains("r");
+                showHidden |= arg.contains("a");
+                recursive |= arg.contains("r");
+                parallel |= arg.contains("P");
             } else if (dir == currentDirectory) {
                 dir = getFile(arg);
                 if (!dir.exists() || !dir.isDirectory()) {
-                    System.out.println("Directory not found: " + arg);
-                    return;
+                    printError("Directory not found: " + arg);
+                    return LineSource.EMPTY;
                 }
             } else {
-                System.out.println("Invalid argument: " + arg);
-                return;
+                printError("Invalid argument: " + arg);
+                return LineSource.EMPTY;
             }
         }
-        listFiles(dir, showHidden, recursive);
+        return listFiles(dir, showHidden, recursive, parallel);
     }
 
     // Create a directory
     private void executeMkdir(String[] args) {
         if (args.length != 1) {
-            System.out.println("Usage: mkdir <directory_name>");
+            printError("Usage: mkdir <directory_name>");
             return;
         }
         File dir = getFile(args[0]);
+        Metrics.fsCall(Metrics.FsCall.CREATE);
         if (dir.mkdir()) {
-            System.out.println("Directory created: " + args[0]);
+            cacheAdded(dir);
+            printMessage("Directory created: " + args[0]);
         } else {
-            System.out.println("Failed to create directory: " + args[0]);
+            printError("Failed to create directory: " + args[0]);
         }
     }
 
     private void executeRmdir(String[] args) {
         if (args.length != 1) {
-            System.out.println("Usage: rmdir <directory_name>");
+            printError("Usage: rmdir <directory_name>");
             return;
         }
         File dir = getFile(args[0]);
+        Metrics.fsCall(Metrics.FsCall.DELETE);
         if (dir.isDirectory() && dir.delete()) {
-            System.out.println("Directory removed: " + args[0]);
+            cacheRemoved(dir);
+            printMessage("Directory removed: " + args[0]);
         } else {
-            System.out.println("Failed to remove directory: " + args[0]);
+            printError("Failed to remove directory: " + args[0]);
         }
     }
 
-    // Remove a file
+    // Remove a file, or a whole directory with -r
     private void executeRm(String[] args) {
+        if (args.length == 2 && args[0].equals("-r")) {
+            File root = getFile(args[1]);
+            if (!root.exists() && !Files.isSymbolicLink(root.toPath())) {
+                printError("File not found: " + args[1]);
+                return;
+            }
+            FileTree tree = new FileTree(this::printMessage, this::printError);
+            boolean removed = tree.delete(root.toPath());
+            cacheRemoved(root);
+            if (removed) {
+                printMessage("Removed " + tree.files() + " files: " + args[1]);
+            }
+            return;
+        }
         if (args.length != 1) {
-            System.out.println("Usage: rm <file_name>");
+            printError("Usage: rm [-r] <file_name>");
             return;
         }
         File file = getFile(args[0]);
+        Metrics.fsCall(Metrics.FsCall.DELETE);
         if (file.isFile() && file.delete()) {
-            System.out.println("File removed: " + args[0]);
+            cacheRemoved(file);
+            printMessage("File removed: " + args[0]);
         } else {
-            System.out.println("Failed to remove file: " + args[0]);
+            printError("Failed to remove file: " + args[0]);
         }
     }
 
-    // Display file contents
-    private void executeCat(String[] args) {
+    // Display file contents, streamed line by line as the next stage asks for them.
+    // Without a file name in a pipe, the piped input is passed through.
+    private LineSource executeCat(String[] args, LineSource input) throws IOException {
+        if (args.length == 0 && input != null) {
+            return input;
+        }
+        closeInput(input);
         if (args.length != 1) {
-            System.out.println("Usage: cat <file_name>");
-            return;
+            printError("Usage: cat <file_name>");
+            return LineSource.EMPTY;
         }
         File file = getFile(args[0]);
         if (file.isFile()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    outputBuilder.append(line);
-                    outputBuilder.append('\n');
+            try {
+                Charset charset = Charset.defaultCharset();
+                if (GzipSource.isGzip(file)) {
+                    // Compressed files are decompressed as they are read
+                    if (FileSource.supports(charset)) {
+                        return new GzipSource(file, charset);
+                    }
+                    return LineSource.of(new BufferedReader(new InputStreamReader(
+                            new GZIPInputStream(new FileInputStream(file), READ_BUFFER_SIZE), charset), READ_BUFFER_SIZE));
+                }
+                if (FileSource.supports(charset)) {
+                    return new FileSource(file, charset);
                 }
+                return LineSource.of(new BufferedReader(new FileReader(file), READ_BUFFER_SIZE));
             } catch (IOException e) {
-                System.out.println("Error reading file: " + e.getMessage());
+                printError("Error reading file: " + e.getMessage());
             }
         } else {
-            System.out.println("File not found: " + args[0]);
+            printError("File not found: " + args[0]);
         }
+        return LineSource.EMPTY;
+    }
+
+    // Copy a file, or a whole directory with -r, into a directory or to a new name; -p keeps modification times
+    private void executeCp(String[] args) {
+        boolean recursive = false;
+        boolean preserve = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (operands.isEmpty() && arg.matches("-[rp]+")) {
+                recursive |= arg.contains("r");
+                preserve |= arg.contains("p");
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (operands.size() != 2) {
+            printError("Usage: cp [-rp] <source> <destination>");
+            return;
+        }
+        String sourceName = operands.get(0);
+        File src = getFile(sourceName);
+        File dest = getFile(operands.get(1));
+        if (!src.exists()) {
+            printError("File not found: " + sourceName);
+            return;
+        }
+        if (src.isDirectory() && !recursive) {
+            printError("Omitting directory without -r: " + sourceName);
+            return;
+        }
+        String destName = operands.get(1);
+        if (dest.isDirectory()) {
+            dest = new File(dest, src.getName());
+            destName = new File(destName, src.getName()).getPath();
+        }
+        if (!src.isDirectory() && isSameFile(src, dest)) {
+            printError("'" + sourceName + "' and '" + destName + "' are the same file");
+            return;
+        }
+        if (isInside(dest, src)) {
+            printError("Cannot copy a directory into itself: " + sourceName);
+            return;
+        }
+        FileTree tree = new FileTree(this::printMessage, this::printError);
+        boolean copied = tree.copy(src.toPath(), dest.toPath(), preserve);
+        cacheAdded(dest);
+        if (copied) {
+            printMessage("Copied " + tree.files() + " files to " + dest.getPath());
+        }
+    }
+
+    // Whether both name one existing file, through links or different spellings of the path
+    private static boolean isSameFile(File a, File b) {
+        try {
+            return b.exists() && Files.isSameFile(a.toPath(), b.toPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Whether path is dir itself or somewhere below it
+    private static boolean isInside(File path, File dir) {
+        Path absolute = path.toPath().toAbsolutePath().normalize();
+        return absolute.startsWith(dir.toPath().toAbsolutePath().normalize());
+    }
+
+    // The first lines of a file or of the piped input; nothing past them is read
+    private LineSource executeHead(String[] args, LineSource input) throws IOException {
+        int count = 10;
+        String fileName = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                count = parseCount(args[++i]);
+            } else if (args[i].startsWith("-") || fileName != null) {
+                count = -1;
+            } else {
+                fileName = args[i];
+            }
+        }
+        if (count < 0 || (fileName == null) == (input == null)) {
+            printError("Usage: head [-n lines] [file]");
+            closeInput(input);
+            return LineSource.EMPTY;
+        }
+        if (fileName != null) {
+            input = executeCat(new String[]{fileName}, null);
+        }
+        return LineSource.limit(input, count);
+    }
+
+    // The last lines of a file or of the piped input. A file is read backward from its end, so only the
+    // lines shown are read; with -f the file is then followed until the stage is closed.
+    private LineSource executeTail(String[] args, LineSource input) throws IOException {
+        int count = 10;
+        boolean follow = false;
+        String fileName = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                count = parseCount(args[++i]);
+            } else if (args[i].equals("-f")) {
+                follow = true;
+            } else if (args[i].startsWith("-") || fileName != null) {
+                count = -1;
+            } else {
+                fileName = args[i];
+            }
+        }
+        if (count < 0 || (fileName == null) == (input == null) || (follow && fileName == null)) {
+            printError("Usage: tail [-n lines] [-f] [file]");
+            closeInput(input);
+            return LineSource.EMPTY;
+        }
+        if (fileName == null) {
+            return Tail.lastLines(input, count);
+        }
+        File file = getFile(fileName);
+        if (!file.isFile()) {
+            printError("File not found: " + fileName);
+            return LineSource.EMPTY;
+        }
+        Charset charset = Charset.defaultCharset();
+        boolean compressed;
+        try {
+            compressed = GzipSource.isGzip(file);
+        } catch (IOException e) {
+            printError("Error reading file: " + e.getMessage());
+            return LineSource.EMPTY;
+        }
+        if (compressed) {
+            // A compressed file can only be read from its start
+            if (follow) {
+                printError("tail -f is not supported for compressed files");
+                return LineSource.EMPTY;
+            }
+            return Tail.lastLines(executeCat(new String[]{fileName}, null), count);
+        }
+        if (!FileSource.supports(charset)) {
+            if (follow) {
+                printError("tail -f is not supported for the " + charset + " encoding");
+                return LineSource.EMPTY;
+            }
+            return Tail.lastLines(executeCat(new String[]{fileName}, null), count);
+        }
+        try {
+            return follow ? Tail.follow(file, charset, count) : Tail.lastLines(file, charset, count);
+        } catch (IOException e) {
+            printError("Error reading file: " + e.getMessage());
+            return LineSource.EMPTY;
+        }
+    }
+
+    // A line count option, or -1 when it isn't one
+    private static int parseCount(String count) {
+        try {
+            return Math.max(-1, Integer.parseInt(count));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Sort the lines of a file or of the piped input, spilling to temporary files past the memory budget
+    private LineSource executeSort(String[] args, LineSource input) throws IOException {
+        boolean numeric = false;
+        boolean reverse = false;
+        int firstField = 0;
+        int lastField = 0;
+        long budget = Sort.defaultBudget();
+        String fileName = null;
+        boolean valid = true;
+        for (int i = 0; i < args.length && valid; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-k") || arg.startsWith("-S")) {
+                String value = arg.length() > 2 ? arg.substring(2) : i + 1 < args.length ? args[++i] : "";
+                if (arg.startsWith("-k")) {
+                    String[] fields = value.split(",", -1);
+                    firstField = fields.length <= 2 ? parseCount(fields[0]) : -1;
+                    lastField = fields.length == 2 ? parseCount(fields[1]) : 0;
+                    valid = firstField > 0 && lastField >= 0 && (lastField == 0 || lastField >= firstField);
+                } else {
+                    budget = parseSize(value);
+                    valid = budget > 0;
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                if (!arg.matches("-[nr]+")) {
+                    printError("Invalid option: " + arg);
+                    closeInput(input);
+                    return LineSource.EMPTY;
+                }
+                numeric |= arg.contains("n");
+                reverse |= arg.contains("r");
+            } else {
+                valid = fileName == null;
+                fileName = arg;
+            }
+        }
+        if (!valid || (fileName == null) == (input == null)) {
+            printError("Usage: sort [-nr] [-k field[,field]] [-S size] [file]");
+            closeInput(input);
+            return LineSource.EMPTY;
+        }
+        if (fileName != null) {
+            input = executeCat(new String[]{fileName}, null);
+        }
+        return new Sort(numeric, reverse, firstField, lastField, budget).apply(input);
+    }
+
+    // A size in bytes, with an optional K, M or G suffix, or -1 when it isn't one
+    private static long parseSize(String size) {
+        long unit = 1;
+        if (!size.isEmpty() && "KMG".indexOf(Character.toUpperCase(size.charAt(size.length() - 1))) >= 0) {
+            unit = 1L << 10 * ("KMG".indexOf(Character.toUpperCase(size.charAt(size.length() - 1))) + 1);
+            size = size.substring(0, size.length() - 1);
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(size), unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    // Collapse repeated adjacent lines of a file or of the piped input, counting them with -c
+    private LineSource executeUniq(String[] args, LineSource input) throws IOException {
+        boolean count = false;
+        String fileName = null;
+        boolean valid = true;
+        for (String arg : args) {
+            if (arg.equals("-c")) {
+                count = true;
+            } else {
+                valid &= !arg.startsWith("-") && fileName == null;
+                fileName = arg;
+            }
+        }
+        if (!valid || (fileName == null) == (input == null)) {
+            printError("Usage: uniq [-c] [file]");
+            closeInput(input);
+            return LineSource.EMPTY;
+        }
+        if (fileName != null) {
+            input = executeCat(new String[]{fileName}, null);
+        }
+        return Uniq.apply(input, count);
     }
 
     // Create a file
     private void executeTouch(String[] args) {
         if (args.length != 1) {
-            System.out.println("Usage: touch <file_name>");
+            printError("Usage: touch <file_name>");
             return;
         }
         File file = getFile(args[0]);
         try {
+            Metrics.fsCall(Metrics.FsCall.CREATE);
             if (file.createNewFile()) {
-                System.out.println("File created: " + args[0]);
+                cacheAdded(file);
+                printMessage("File created: " + args[0]);
             } else {
-                System.out.println("File already exists: " + args[0]);
+                printMessage("File already exists: " + args[0]);
             }
         } catch (IOException e) {
-            System.out.println("Error creating file: " + e.getMessage());
+            printError("Error creating file: " + e.getMessage());
         }
     }
 
     // Move or rename a file or directory
     private void executeMv(String[] args) {
         if (args.length != 2) {
-            System.out.println("Usage: mv <source> <destination>");
+            printError("Usage: mv <source> <destination>");
             return;
         }
         try {
@@ -250,10 +768,12 @@ public class Shell {
             if (dest.isDirectory()) {
                 // Move the source file/directory inside the destination directory
                 File newDest = new File(dest, src.getName()); // Move the file into the destination directory
-                if (src.renameTo(newDest)) {
-                    System.out.println("Moved " + src.getName() + " to " + newDest.getPath());
+                if (move(src, newDest)) {
+                    cacheRemoved(src);
+                    cacheAdded(newDest);
+                    printMessage("Moved " + src.getName() + " to " + newDest.getPath());
                 } else {
-                    System.out.println("Failed to move " + args[0] + " to " + dest.getPath());
+                    printError("Failed to move " + args[0] + " to " + dest.getPath());
                 }
             } else {
                 if (dest.exists()) {
@@ -262,21 +782,31 @@ public class Shell {
                     }
                 }
                 // If destination is not a directory, rename the source file
-                if (src.renameTo(dest)) {
-                    System.out.println("Renamed " + src.getName() + " to " + dest.getName());
+                if (move(src, dest)) {
+                    cacheRemoved(src);
+                    cacheAdded(dest);
+                    printMessage("Renamed " + src.getName() + " to " + dest.getName());
                 } else {
-                    System.out.println("Failed to rename " + args[0] + " to " + args[1]);
+                    printError("Failed to rename " + args[0] + " to " + args[1]);
                 }
             }
         } catch (Exception e) {
-            System.out.println("Error moving/renaming: " + e.getMessage());
+            printError("Error moving/renaming: " + e.getMessage());
+        }
+    }
+
+    // Rename, or copy and delete when the destination is on another filesystem
+    private boolean move(File src, File dest) throws IOException {
+        if (!src.exists() || isInside(dest, src)) {
+            return false;
         }
+        return new FileTree(this::printMessage, this::printError).move(src.toPath(), dest.toPath());
     }
 
     // Change current working directory
     private void executeCd(String[] args) {
         if (args.length != 1) {
-            System.out.println("Usage: cd <directory_name>");
+            printError("Usage: cd <directory_name>");
             return;
         }
         try {
@@ -289,51 +819,510 @@ public class Shell {
             // Check if the resolved path is a directory and exists
             if (resolvedDir.isDirectory()) {
                 currentDirectory = resolvedDir;
-                System.out.println("Directory changed to: " + currentDirectory.getPath());
+                printMessage("Directory changed to: " + currentDirectory.getPath());
             } else {
-                System.out.println("Directory not found: " + args[0]);
+                printError("Directory not found: " + args[0]);
             }
         } catch (IOException e) {
-            System.out.println("Error changing directory: " + e.getMessage());
+            printError("Error changing directory: " + e.getMessage());
         }
     }
 
     private void executePwd(String[] args) {
         if (args.length != 0) {
-            System.out.println("Usage: pwd");
+            printError("Usage: pwd");
             return;
         }
         outputBuilder.append(currentDirectory.getPath());
         outputBuilder.append('\n');
     }
 
-    private void executeGrep(String[] args, boolean useCat) {
-        if (args.length != 1 && !useCat) {
-            System.out.println("Usage: grep <pattern>");
-            outputBuilder.setLength(0);
-            return;
+    // Filter lines containing the pattern, read from the file or from the previous stage when input is given
+    private LineSource executeGrep(String[] args, LineSource input) throws IOException {
+        boolean ignoreCase = false;
+        boolean invert = false;
+        boolean count = false;
+        boolean lineNumbers = false;
+        boolean regex = false;
+        boolean recursive = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (operands.isEmpty() && arg.startsWith("-") && arg.length() > 1) {
+                if (!arg.matches("-[ivcnEr]+")) {
+                    printError("Invalid option: " + arg);
+                    if (input != null) {
+                        input.close();
+                    }
+                    return LineSource.EMPTY;
+                }
+                ignoreCase |= arg.contains("i");
+                invert |= arg.contains("v");
+                count |= arg.contains("c");
+                lineNumbers |= arg.contains("n");
+                regex |= arg.contains("E");
+                recursive |= arg.contains("r");
+            } else {
+                operands.add(arg);
+            }
         }
-        if (args.length != 2 && useCat) {
-            System.out.println("Usage: grep <pattern> <file_name>");
-            outputBuilder.setLength(0);
-            return;
+        if (operands.size() != 1 && input != null) {
+            printError("Usage: grep [-ivcnE] <pattern>");
+            input.close(); // Nothing downstream will read the previous stage any more
+            return LineSource.EMPTY;
+        }
+        if (operands.size() != 2 && input == null) {
+            printError("Usage: grep [-ivcnEr] <pattern> <file_name>");
+            return LineSource.EMPTY;
+        }
+        if (recursive && input != null) {
+            printError("Usage: grep -r <pattern> <directory>");
+            input.close();
+            return LineSource.EMPTY;
+        }
+        Grep grep = newGrep(operands.get(0), ignoreCase, invert, count, lineNumbers, regex);
+        if (grep == null) {
+            if (input != null) {
+                input.close();
+            }
+            return LineSource.EMPTY;
         }
-        if (useCat) {
-            executeCat(new String[]{args[1]});
+        if (recursive) {
+            File root = getFile(operands.get(1));
+            if (!root.exists()) {
+                printError("File not found: " + operands.get(1));
+                return LineSource.EMPTY;
+            }
+            return new RecursiveGrep(root, operands.get(1), grep::copy, count, lineNumbers, Charset.defaultCharset(),
+                    this::printError);
+        }
+        if (input == null) {
+            input = executeCat(new String[]{operands.get(1)}, null);
         }
-        String[] lines = outputBuilder.toString().split("\n");
-        outputBuilder.setLength(0);
-        for (String line : lines) {
-            if (line.contains(args[0])) {
-                outputBuilder.append(line);
-                outputBuilder.append('\n');
+        return grep.apply(input);
+    }
+
+    // A grep stage for the pattern, or null when it isn't a valid regular expression
+    private Grep newGrep(String pattern, boolean ignoreCase, boolean invert, boolean count, boolean lineNumbers,
+                         boolean regex) {
+        Pattern compiled = null;
+        if (regex) {
+            try {
+                int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+                compiled = PatternCache.compile(pattern, flags);
+            } catch (PatternSyntaxException e) {
+                printError("Invalid pattern: " + e.getDescription());
+                return null;
             }
+            pattern = PatternCache.literalPrefix(pattern);
         }
+        LiteralSearcher searcher = new LiteralSearcher(pattern, ignoreCase, Charset.defaultCharset());
+        Matcher matcher = compiled == null ? null : compiled.matcher("");
+        return new Grep(searcher, matcher, invert, count, lineNumbers);
+    }
+
+    // Find the entries below a directory that pass every test, streaming them as the walk finds them
+    private LineSource executeFind(String[] args, LineSource input) throws IOException {
+        closeInput(input);
+        String usage = "Usage: find [directory] [-name pattern] [-type f|d|l] [-size [+-]n[ckMG]] [-mtime [+-]n] [-maxdepth n]";
+        String displayRoot = ".";
+        int i = 0;
+        if (args.length > 0 && !args[0].startsWith("-")) {
+            displayRoot = args[i++];
+        }
+        List<Find.Test> tests = new ArrayList<>();
+        int maxDepth = -1;
+        for (; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                printError(usage);
+                return LineSource.EMPTY;
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "-name":
+                        tests.add(Find.name(value));
+                        break;
+                    case "-type":
+                        tests.add(Find.type(value));
+                        break;
+                    case "-size":
+                        tests.add(Find.size(value));
+                        break;
+                    case "-mtime":
+                        tests.add(Find.mtime(value));
+                        break;
+                    case "-maxdepth":
+                        maxDepth = parseCount(value);
+                        if (maxDepth < 0) {
+                            throw new IllegalArgumentException("Invalid depth: " + value);
+                        }
+                        break;
+                    default:
+                        printError("Invalid option: " + option);
+                        return LineSource.EMPTY;
+                }
+            } catch (IllegalArgumentException e) {
+                printError(e.getMessage());
+                return LineSource.EMPTY;
+            }
+        }
+        File root = getFile(displayRoot);
+        if (!root.exists()) {
+            printError("File not found: " + displayRoot);
+            return LineSource.EMPTY;
+        }
+        return new Find(root.toPath().toAbsolutePath().normalize(), displayRoot, tests, maxDepth, this::printError);
+    }
+
+    // Add up the sizes below a directory; with the cache on, unchanged directories aren't listed again
+    private LineSource executeDu(String[] args, LineSource input) throws IOException {
+        closeInput(input);
+        boolean summarize = false;
+        boolean human = false;
+        int maxDepth = -1;
+        String displayRoot = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--max-depth")) {
+                String value = arg.startsWith("--max-depth=") ? arg.substring("--max-depth=".length())
+                        : arg.equals("--max-depth") && i + 1 < args.length ? args[++i] : "";
+                maxDepth = parseCount(value);
+                if (maxDepth < 0) {
+                    printError("Usage: du [-sh] [--max-depth=n] [directory]");
+                    return LineSource.EMPTY;
+                }
+            } else if (arg.startsWith("-")) {
+                if (!arg.matches("-[sh]+")) {
+                    printError("Invalid option: " + arg);
+                    return LineSource.EMPTY;
+                }
+                summarize |= arg.contains("s");
+                human |= arg.contains("h");
+            } else if (displayRoot == null) {
+                displayRoot = arg;
+            } else {
+                printError("Usage: du [-sh] [--max-depth=n] [directory]");
+                return LineSource.EMPTY;
+            }
+        }
+        if (displayRoot == null) {
+            displayRoot = ".";
+        }
+        File root = getFile(displayRoot);
+        if (!root.exists()) {
+            printError("File not found: " + displayRoot);
+            return LineSource.EMPTY;
+        }
+        DiskUsage usage = new DiskUsage(root.toPath().toAbsolutePath().normalize(), displayRoot,
+                summarize ? 0 : maxDepth, human, usageCache, this::printError);
+        return lazily(usage::measure);
+    }
+
+    // Hash files, or every file below a directory with -r, many at once; with -c, check the files a
+    // checksum file lists against the hashes it gives
+    private LineSource executeChecksum(String algorithm, String command, String[] args, LineSource input) throws IOException {
+        closeInput(input);
+        String usage = "Usage: " + command + " [-r] <file_name>... | " + command + " -c <checksum_file>";
+        if (args.length == 0 || (args[0].equals("-r") || args[0].equals("-c")) && args.length != 2) {
+            printError(usage);
+            return LineSource.EMPTY;
+        }
+        Checksums checksums = new Checksums(algorithm, this::printError);
+        if (args[0].equals("-r")) {
+            File root = getFile(args[1]);
+            if (!root.isDirectory()) {
+                printError("Directory not found: " + args[1]);
+                return LineSource.EMPTY;
+            }
+            return lazily(() -> checksums.sumTree(root.toPath().toAbsolutePath().normalize(), args[1]));
+        }
+        if (args[0].equals("-c")) {
+            return checkSums(checksums, args[1]);
+        }
+        List<Path> files = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-")) {
+                printError("Invalid option: " + arg);
+                return LineSource.EMPTY;
+            }
+            File file = getFile(arg);
+            if (file.isFile()) {
+                files.add(file.toPath());
+                names.add(arg);
+            } else {
+                printError("File not found: " + arg);
+            }
+        }
+        return lazily(() -> checksums.sum(files, names));
+    }
+
+    // Check the "hash  name" lines of a checksum file, as sha256sum and md5sum print them
+    private LineSource checkSums(Checksums checksums, String checksumFile) throws IOException {
+        File file = getFile(checksumFile);
+        if (!file.isFile()) {
+            printError("File not found: " + checksumFile);
+            return LineSource.EMPTY;
+        }
+        List<Path> files = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        int malformed = 0;
+        try (LineSource lines = executeCat(new String[]{checksumFile}, null)) {
+            String line;
+            while ((line = lines.nextLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0 || space + 2 > line.length() || !line.substring(0, space).matches("[0-9a-fA-F]+")) {
+                    malformed++;
+                    continue;
+                }
+                // A '*' in place of the second space marks a file hashed in binary mode, the same thing here
+                String name = line.substring(space + 2);
+                files.add(getFile(name).toPath());
+                names.add(name);
+                expected.add(line.substring(0, space));
+            }
+        }
+        int improper = malformed;
+        return lazily(() -> {
+            List<String> results = checksums.check(files, names, expected);
+            int failures = 0;
+            for (String result : results) {
+                if (!result.endsWith(": OK")) {
+                    failures++;
+                }
+            }
+            if (improper > 0) {
+                printError("WARNING: " + improper + " line" + (improper == 1 ? " is" : "s are") + " improperly formatted");
+            }
+            if (failures > 0) {
+                printError("WARNING: " + failures + " computed checksum" + (failures == 1 ? "" : "s") + " did NOT match");
+            }
+            return results;
+        });
+    }
+
+    // Find files below a directory with the same contents, printed in groups separated by blank lines
+    private LineSource executeDupes(String[] args, LineSource input) throws IOException {
+        closeInput(input);
+        if (args.length > 1) {
+            printError("Usage: dupes [directory]");
+            return LineSource.EMPTY;
+        }
+        String displayRoot = args.length == 0 ? "." : args[0];
+        File root = getFile(displayRoot);
+        if (!root.isDirectory()) {
+            printError("Directory not found: " + displayRoot);
+            return LineSource.EMPTY;
+        }
+        DuplicateFinder finder = new DuplicateFinder(root.toPath().toAbsolutePath().normalize(), displayRoot, this::printError);
+        return lazily(() -> {
+            List<String> lines = new ArrayList<>();
+            for (List<String> group : finder.find()) {
+                if (!lines.isEmpty()) {
+                    lines.add("");
+                }
+                lines.addAll(group);
+            }
+            return lines;
+        });
+    }
+
+    // Run a command with the piped lines as its arguments, a few lines per invocation and up to -P
+    // invocations at once; -u passes output on as invocations finish instead of in input order
+    private LineSource executeXargs(String[] args, LineSource input) throws IOException {
+        int parallelism = 1;
+        int argumentsPerCommand = 1;
+        boolean ordered = true;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if (args[i].equals("-P") && i + 1 < args.length) {
+                parallelism = parseCount(args[++i]);
+                if (parallelism == 0) {
+                    parallelism = Runtime.getRuntime().availableProcessors();
+                }
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                argumentsPerCommand = parseCount(args[++i]);
+            } else if (args[i].equals("-u")) {
+                ordered = false;
+            } else {
+                printError("Invalid option: " + args[i]);
+                closeInput(input);
+                return LineSource.EMPTY;
+            }
+        }
+        if (i == args.length || input == null || parallelism < 1 || argumentsPerCommand < 1) {
+            printError("Usage: xargs [-P n] [-n k] [-u] <command> [arguments]");
+            closeInput(input);
+            return LineSource.EMPTY;
+        }
+        String name = args[i];
+        if (!commands.containsKey(name)) {
+            printError("Command not recognized: " + name);
+            closeInput(input);
+            return LineSource.EMPTY;
+        }
+        List<String> fixed = Arrays.asList(args).subList(i + 1, args.length);
+        return new Xargs(input, argumentsPerCommand, parallelism, ordered, arguments -> {
+            List<String> words = new ArrayList<>(fixed);
+            words.addAll(arguments);
+            return invoke(name, words.toArray(new String[0]));
+        });
+    }
+
+    // Run one invocation for xargs on a shell of its own, since commands keep what they are doing in the
+    // shell running them. It starts where this one is, shares its caches and reports through it.
+    private List<String> invoke(String name, String[] args) {
+        Shell worker = new Shell(console);
+        worker.currentDirectory = currentDirectory;
+        worker.syncPolicy = syncPolicy;
+        worker.messageStream = messageStream;
+        worker.directoryCache = directoryCache;
+        worker.usageCache = usageCache;
+        worker.cancellation = cancellation;
+        List<String> lines = new ArrayList<>();
+        try (LineSource output = worker.commands.get(name).execute(args, null)) {
+            String line;
+            while ((line = output.nextLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            worker.printError("Error executing command: " + e.getMessage());
+        }
+        try {
+            if (worker.index != null) {
+                worker.index.close(); // Searches don't share a mapped index across invocations
+            }
+        } catch (IOException ignored) {
+            // Only unmapping it failed
+        }
+        if (worker.failed) {
+            failed = true;
+        }
+        return lines;
+    }
+
+    // Lines a command works out all at once, which only needs to happen once the pipe first asks for them
+    private interface Lines {
+        List<String> get() throws IOException;
+    }
+
+    private static LineSource lazily(Lines producer) {
+        return new LineSource() {
+            private LineSource lines;
+
+            @Override
+            public String nextLine() throws IOException {
+                if (lines == null) {
+                    lines = LineSource.of(producer.get());
+                }
+                return lines.nextLine();
+            }
+        };
+    }
+
+    // Build or drop a trigram index of a directory, or search the files it says can match
+    private LineSource executeIndex(String[] args, LineSource input) throws IOException {
+        closeInput(input);
+        if (args.length == 2 && args[0].equals("build")) {
+            File root = getFile(args[1]);
+            if (!root.isDirectory()) {
+                printError("Directory not found: " + args[1]);
+                return LineSource.EMPTY;
+            }
+            try {
+                String summary = TrigramIndex.build(root.toPath().toAbsolutePath().normalize(), this::printError);
+                return LineSource.of(summary + "\n");
+            } catch (IOException e) {
+                printError("Failed to build index: " + e.getMessage());
+                return LineSource.EMPTY;
+            }
+        }
+        if (args.length == 2 && args[0].equals("drop")) {
+            Path root = getFile(args[1]).toPath().toAbsolutePath().normalize();
+            if (index != null && index.root().equals(root)) {
+                index.close();
+                index = null;
+            }
+            try {
+                if (!TrigramIndex.drop(root)) {
+                    printError("No index found: " + args[1]);
+                }
+            } catch (IOException e) {
+                printError("Failed to drop index: " + e.getMessage());
+            }
+            return LineSource.EMPTY;
+        }
+        if (args.length < 2 || !args[0].equals("grep")) {
+            printError("Usage: index build <directory> | index drop <directory> | index grep [-ivcnE] <pattern> [directory]");
+            return LineSource.EMPTY;
+        }
+        boolean ignoreCase = false;
+        boolean invert = false;
+        boolean count = false;
+        boolean lineNumbers = false;
+        boolean regex = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : Arrays.asList(args).subList(1, args.length)) {
+            if (operands.isEmpty() && arg.startsWith("-") && arg.length() > 1) {
+                if (!arg.matches("-[ivcnE]+")) {
+                    printError("Invalid option: " + arg);
+                    return LineSource.EMPTY;
+                }
+                ignoreCase |= arg.contains("i");
+                invert |= arg.contains("v");
+                count |= arg.contains("c");
+                lineNumbers |= arg.contains("n");
+                regex |= arg.contains("E");
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (operands.isEmpty() || operands.size() > 2) {
+            printError("Usage: index grep [-ivcnE] <pattern> [directory]");
+            return LineSource.EMPTY;
+        }
+        String displayRoot = operands.size() == 2 ? operands.get(1) : ".";
+        File root = getFile(displayRoot);
+        Grep grep = newGrep(operands.get(0), ignoreCase, invert, count, lineNumbers, regex);
+        if (grep == null) {
+            return LineSource.EMPTY;
+        }
+        TrigramIndex searched = loadIndex(root.toPath().toAbsolutePath().normalize());
+        if (searched == null) {
+            printError("No index found: " + displayRoot);
+            return LineSource.EMPTY;
+        }
+        // Only lines containing the literal can match; an inverted search can match anywhere
+        String literal = invert ? "" : regex ? PatternCache.literalPrefix(operands.get(0)) : operands.get(0);
+        if (ignoreCase && !literal.chars().allMatch(c -> c < 0x80)) {
+            literal = ""; // The index only folds ASCII letters
+        }
+        List<Path> candidates = searched.candidates(literal.getBytes(Charset.defaultCharset()), this::printError);
+        return new RecursiveGrep(searched.root().toFile(), displayRoot, candidates, grep::copy, count, lineNumbers,
+                Charset.defaultCharset(), this::printError);
+    }
+
+    // The index of root, kept mapped between searches until it is rebuilt or another one is used
+    private TrigramIndex loadIndex(Path root) throws IOException {
+        if (index != null && (!index.root().equals(root) || index.isStale())) {
+            index.close();
+            index = null;
+        }
+        if (index == null) {
+            try {
+                index = TrigramIndex.load(root);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+        return index;
     }
 
     private void executeUname(String[] args) {
         if (args.length != 0) {
-            System.out.println("Usage: uname");
+            printError("Usage: uname");
             return;
         }
         outputBuilder.append(System.getProperty("os.name"));
@@ -342,7 +1331,7 @@ public class Shell {
 
     private void executeWho(String[] args) {
         if (args.length != 0) {
-            System.out.println("Usage: who | users");
+            printError("Usage: who | users");
             return;
         }
         outputBuilder.append(System.getProperty("user.name"));
@@ -352,87 +1341,333 @@ public class Shell {
     // Show help message
     private void executeHelp(String[] args) {
         if (args.length != 0) {
-            System.out.println("Usage: help");
+            printError("Usage: help");
             return;
         }
         outputBuilder.append("""
                 Available commands:
                   echo <message>                  Echo the message to the console
-                  ls [-a] [-r]                    List files in the current directory
+                  ls [-a] [-r] [-P] [directory]   List files, recursively with -r (in parallel with -P)
                   mkdir <directory_name>          Create a new directory
                   rmdir <directory_name>          Remove an empty directory
-                  rm <file_name>                  Remove a file
+                  rm [-r] <file_name>             Remove a file, or a directory and everything in it
+                  cp [-rp] <source> <destination> Copy a file, or a directory and everything in it
                   cat <file_name>                 Display file contents
+                  head [-n lines] [file]          Display the first lines of a file or piped input
+                  tail [-n lines] [-f] [file]     Display the last lines of a file, following it with -f
+                  sort [-nr] [-k field] [file]    Sort lines by text or number, whole or from a field
+                  uniq [-c] [file]                Collapse repeated adjacent lines, counting them with -c
                   touch <file_name>               Create a new file
                   mv <source> <destination>       Move or rename a file or directory
                   cd <directory>                  Change the current directory
-                  grep <pattern> <file_name>      Search for pattern in file
+                  grep [-ivcnEr] <pattern> [file] Search for pattern in file, directory or piped input
+                  find [dir] [tests]              Find files by -name, -type, -size, -mtime and -maxdepth
+                  du [-sh] [--max-depth=n] [dir]  Show the space used by a directory and those below it
+                  sha256sum [-r] [-c] <file>...   Print or check SHA-256 hashes of files, many at once
+                  md5sum [-r] [-c] <file>...      Print or check MD5 hashes of files, many at once
+                  dupes [directory]               Find files below a directory with the same contents
+                  xargs [-P n] <command>          Run a command on piped lines, several at once with -P
+                  index build <directory>         Index a directory tree for fast repeated searches
+                  index grep <pattern> [dir]      Search an indexed tree, reading only files that can match
+                  index drop <directory>          Delete the index kept for a directory tree
                   pwd                             Print the current directory
                   uname                           Displays the operating system name
                   users                           Displays the names of users currently logged in to the system
                   who                             Displays the names of users currently logged in to the system
+                  cache <on|off|clear|stats>      Cache directory listings between commands
+                  fsync [off|close|always]        Choose when redirected output is forced to disk
+                  stats [on|off|reset|json]       Collect and show command timings and counters
+                  <command> &                     Run a command line in the background
+                  jobs                            List the background jobs
+                  wait [%n]                       Wait for a background job, or for all of them
+                  kill %n                         Cancel a background job
                   help                            Show this help message
                   exit                            Exit the shell
                 """);
     }
 
-    // Handle piping manually
-    private void processPipe(String commandInput) {
+    // List files in the directory, streamed as the walk finds them
+    private LineSource listFiles(File dir, boolean showHidden, boolean recursive, boolean parallel) {
+        if (recursive && parallel) {
+            return listFilesParallel(dir.toPath(), showHidden);
+        }
+        try {
+            return new DirectoryWalker(dir.toPath(), showHidden, recursive, directoryCache);
+        } catch (IOException e) {
+            printError("Unable to list files.");
+            return LineSource.EMPTY;
+        }
+    }
+
+    // Walk subtrees concurrently for wide trees, giving the same listing order as the streamed walk
+    private LineSource listFilesParallel(Path root, boolean showHidden) {
+        ParallelWalker.Visitor<List<String>> visitor = new ParallelWalker.Visitor<>() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attributes, int depth) {
+                return depth == 0 || showHidden || !DirectoryWalker.isHidden(dir, attributes);
+            }
+
+            @Override
+            public List<String> visitFile(Path file, BasicFileAttributes attributes, int depth) {
+                if (!showHidden && DirectoryWalker.isHidden(file, attributes)) {
+                    return Collections.emptyList();
+                }
+                return Collections.singletonList(DirectoryWalker.display(file, depth == 1));
+            }
+
+            @Override
+            public List<String> postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth,
+                                                   List<List<String>> children) {
+                if (depth > 0 && !showHidden && DirectoryWalker.isHidden(dir, attributes)) {
+                    return Collections.emptyList();
+                }
+                List<String> lines = new ArrayList<>();
+                if (depth > 0) {
+                    lines.add(DirectoryWalker.display(dir, depth == 1));
+                }
+                for (List<String> child : children) {
+                    lines.addAll(child);
+                }
+                return lines;
+            }
+
+            @Override
+            public List<String> visitFailed(Path path, IOException e) {
+                if (path.equals(root)) {
+                    printError("Unable to list files.");
+                    return Collections.emptyList();
+                }
+                return Collections.singletonList(DirectoryWalker.display(path, root.equals(path.getParent())));
+            }
+        };
+        return lazily(() -> new ParallelWalker<>(visitor, false, false).walk(root));
+    }
+
+    // Manage the directory listing cache: turn it on or off, empty it, or report how well it is doing
+    private void executeCache(String[] args) {
+        if (args.length != 1) {
+            printError("Usage: cache <on|off|clear|stats>");
+            return;
+        }
         try {
-            if (outputStream != System.out)
-                return;
-            String[] tokens = commandInput.split("\\s+(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-            String command = tokens[0];
-            String[] args = getArgs(tokens);
-            switch (command) {
-                case "grep":
-                    executeGrep(args, false);
+            switch (args[0]) {
+                case "on":
+                    if (directoryCache == null) {
+                        directoryCache = new DirectoryCache();
+                        usageCache = new DiskUsage.Cache();
+                    }
+                    printMessage("Directory cache enabled");
+                    break;
+                case "off":
+                    if (directoryCache != null) {
+                        directoryCache.close();
+                        directoryCache = null;
+                        usageCache = null;
+                    }
+                    printMessage("Directory cache disabled");
+                    break;
+                case "clear":
+                    if (directoryCache != null) {
+                        directoryCache.clear();
+                        usageCache.clear();
+                    }
+                    break;
+                case "stats":
+                    if (directoryCache == null) {
+                        printMessage("Directory cache is off");
+                        return;
+                    }
+                    outputBuilder.append(directoryCache.stats());
+                    outputBuilder.append('\n');
+                    outputBuilder.append(usageCache.stats());
+                    outputBuilder.append('\n');
                     break;
-                case "TODO LATER":
                 default:
-                    System.out.println("Command not recognized after pipe: " + command);
+                    printError("Usage: cache <on|off|clear|stats>");
             }
+        } catch (IOException e) {
+            printError("Error managing cache: " + e.getMessage());
+        }
+    }
 
-        } catch (Exception e) {
-            System.out.println("Error in piping commands: " + e.getMessage());
+    // Choose how hard redirected output has to reach the disk: not at all, once the file is written,
+    // or after every buffer
+    private void executeFsync(String[] args) {
+        if (args.length == 0) {
+            outputBuilder.append(syncPolicy.name().toLowerCase());
+            outputBuilder.append('\n');
+            return;
+        }
+        if (args.length != 1) {
+            printError("Usage: fsync [off|close|always]");
+            return;
+        }
+        switch (args[0]) {
+            case "off":
+                syncPolicy = ChannelWriter.SyncPolicy.OFF;
+                break;
+            case "close":
+                syncPolicy = ChannelWriter.SyncPolicy.CLOSE;
+                break;
+            case "always":
+                syncPolicy = ChannelWriter.SyncPolicy.ALWAYS;
+                break;
+            default:
+                printError("Usage: fsync [off|close|always]");
         }
     }
 
-    // List files in the current directory
-    private void listFiles(File dir, boolean showHidden, boolean recursive) {
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (!showHidden && file.isHidden()) {
-                    continue;
-                }
-                outputBuilder.append(file.getName());
-                outputBuilder.append('\n');
-                if (recursive && file.isDirectory()) {
-                    listFilesRecursive(file, showHidden);
+    // Turn statistics collection on or off, clear it, or show what has been collected
+    private void executeStats(String[] args) {
+        if (args.length > 1) {
+            printError("Usage: stats [on|off|reset|json]");
+            return;
+        }
+        String action = args.length == 0 ? "show" : args[0];
+        switch (action) {
+            case "on":
+                Metrics.setEnabled(true);
+                printMessage("Statistics enabled");
+                break;
+            case "off":
+                Metrics.setEnabled(false);
+                printMessage("Statistics disabled");
+                break;
+            case "reset":
+                Metrics.reset();
+                break;
+            case "show":
+            case "json":
+                if (!Metrics.enabled()) {
+                    printMessage("Statistics are off");
+                    return;
                 }
+                outputBuilder.append(action.equals("json") ? Metrics.toJson() : Metrics.report() + "\n");
+                break;
+            default:
+                printError("Usage: stats [on|off|reset|json]");
+        }
+    }
+
+    // Run the line on a shell of its own, starting where this one is and printing to a temporary file
+    private boolean startJob(String input, List<Lexer.Stage> stages) {
+        String command = input.strip();
+        command = command.substring(0, command.length() - 1).strip(); // Without the '&'
+        Path output;
+        PrintStream jobConsole;
+        try {
+            Metrics.fsCall(Metrics.FsCall.CREATE);
+            output = Files.createTempFile("shell-job", ".out");
+            output.toFile().deleteOnExit(); // In case the shell exits before the job is reported
+            jobConsole = new PrintStream(new BufferedOutputStream(Files.newOutputStream(output), WRITE_BUFFER_SIZE), false);
+        } catch (IOException e) {
+            printError("Unable to start job: " + e.getMessage());
+            return false;
+        }
+        Shell shell = new Shell(jobConsole);
+        shell.currentDirectory = currentDirectory;
+        shell.syncPolicy = syncPolicy;
+        shell.cancellation = new Cancellation();
+        int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+        String line = command;
+        jobs.put(id, new Job(id, command, output, shell.cancellation, () -> {
+            try (shell; jobConsole) {
+                return shell.run(line, stages);
+            } catch (IOException e) {
+                return false;
             }
-        } else {
-            System.out.println("Unable to list files.");
+        }));
+        printMessage("[" + id + "] " + command);
+        return true;
+    }
+
+    // Show the output of the jobs that have finished since the last report, and how they ended
+    private void reportJobs() {
+        Iterator<Job> pending = jobs.values().iterator();
+        while (pending.hasNext()) {
+            Job job = pending.next();
+            if (job.state() == Job.State.RUNNING) {
+                continue;
+            }
+            try {
+                job.copyOutput(console);
+            } catch (IOException e) {
+                console.println("Unable to read job output: " + e.getMessage());
+            }
+            console.println(job.status());
+            pending.remove();
         }
     }
 
-    // Recursive function to list files in subdirectories
-    private void listFilesRecursive(File dir, boolean showHidden) {
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (!showHidden && file.isHidden()) {
-                    continue;
-                }
-                outputBuilder.append(dir.getPath());
-                outputBuilder.append('\\');
-                outputBuilder.append(file.getName());
-                outputBuilder.append('\n');
-                if (file.isDirectory()) {
-                    listFilesRecursive(file, showHidden);
-                }
+    private void executeJobs(String[] args) {
+        if (args.length != 0) {
+            printError("Usage: jobs");
+            return;
+        }
+        for (Job job : jobs.values()) {
+            outputBuilder.append(job.status()).append('\n');
+        }
+    }
+
+    // Wait for one job, or for all of them; they are reported once the command is done
+    private void executeWait(String[] args) {
+        if (args.length > 1) {
+            printError("Usage: wait [%n]");
+            return;
+        }
+        List<Job> waited = new ArrayList<>(jobs.values());
+        if (args.length == 1) {
+            Job job = findJob(args[0]);
+            if (job == null) {
+                return;
+            }
+            waited = Collections.singletonList(job);
+        }
+        try {
+            for (Job job : waited) {
+                job.await();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            printError("Wait interrupted");
+        }
+    }
+
+    private void executeKill(String[] args) {
+        if (args.length != 1) {
+            printError("Usage: kill %n");
+            return;
+        }
+        Job job = findJob(args[0]);
+        if (job != null) {
+            job.kill();
+        }
+    }
+
+    // A job by its number, written as "%n" or just "n"
+    private Job findJob(String arg) {
+        Job job = null;
+        try {
+            job = jobs.get(Integer.parseInt(arg.startsWith("%") ? arg.substring(1) : arg));
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        if (job == null) {
+            printError("No such job: " + arg);
+        }
+        return job;
+    }
+
+    // Keep cached listings in step with what the shell itself changes
+    private void cacheAdded(File file) {
+        if (directoryCache != null) {
+            directoryCache.added(file.toPath());
+        }
+    }
+
+    private void cacheRemoved(File file) {
+        if (directoryCache != null) {
+            directoryCache.removed(file.toPath());
         }
     }
 
@@ -444,15 +1679,113 @@ public class Shell {
         return file;
     }
 
-    private void printOutput() {
-        if (outputStream == System.out) {
-            System.out.print(outputBuilder);
+    // Drain the last stage into the output, one line at a time
+    private void printOutput(LineSource output) {
+        if (outputChannel != null) {
+            printRedirected(output, outputChannel);
+            return;
+        }
+        // Flushing the console is left to its owner, so batch mode can buffer across commands
+        ChannelWriter writer = new ChannelWriter(Channels.newChannel(new UnflushedStream(console)), Charset.defaultCharset(),
+                ByteBuffer.allocate(WRITE_BUFFER_SIZE), ChannelWriter.SyncPolicy.OFF);
+        try (output) {
+            boolean bytes = Charset.defaultCharset().equals(output.byteCharset());
+            while (true) {
+                if (interactive && !output.ready()) {
+                    // Show what there is before waiting for more, as when following a file. Nobody is left
+                    // to see it once writing fails, as when a client hangs up, so the command stops.
+                    writer.flush();
+                    if (console.checkError() && cancellation != null) {
+                        cancellation.cancel();
+                    }
+                }
+                Cancellation.check(cancellation);
+                if (!copyLine(output, writer, bytes)) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            printError("Error executing command: " + e.getMessage());
+        } finally {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                printError("Error executing command: " + e.getMessage());
+            }
+        }
+    }
+
+    // Write straight to the file's channel as lines arrive, encoding into one reused direct buffer
+    private void printRedirected(LineSource output, FileChannel channel) {
+        // A file redirected as-is is copied channel to channel without being decoded
+        Metrics.Stage measured = output instanceof Metrics.Stage ? (Metrics.Stage) output : null;
+        LineSource source = measured != null ? measured.output() : output;
+        if (source instanceof FileSource) {
+            try (output; channel) {
+                long transferred = ((FileSource) source).transferTo(channel);
+                if (measured != null) {
+                    measured.transferred(transferred);
+                }
+                if (syncPolicy != ChannelWriter.SyncPolicy.OFF) {
+                    Metrics.fsCall(Metrics.FsCall.FORCE);
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                printError("Error executing command: " + e.getMessage());
+            }
             return;
         }
-        try (PrintStream printStream = new PrintStream(outputStream)) {
-            printStream.print(outputBuilder);
+        if (redirectBuffer == null) {
+            redirectBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+        try (output; ChannelWriter writer = new ChannelWriter(channel, Charset.defaultCharset(), redirectBuffer, syncPolicy)) {
+            boolean bytes = Charset.defaultCharset().equals(output.byteCharset());
+            while (copyLine(output, writer, bytes)) {
+                Cancellation.check(cancellation);
+            }
         } catch (Exception e) {
-            System.out.println("Error executing command: " + e.getMessage());
+            printError("Error executing command: " + e.getMessage());
+        }
+    }
+
+    // Copy the next line of the output, returning false at its end. Output that offers its lines as bytes
+    // in the writer's charset is copied without decoding it.
+    private static boolean copyLine(LineSource output, ChannelWriter writer, boolean bytes) throws IOException {
+        if (bytes) {
+            ByteBuffer line = output.nextLineBytes();
+            if (line == null) {
+                return false;
+            }
+            writer.writeLine(line);
+            return true;
+        }
+        String line = output.nextLine();
+        if (line == null) {
+            return false;
+        }
+        writer.write(line);
+        writer.write('\n');
+        return true;
+    }
+
+    // Passes writes through but leaves flushing to whoever owns the stream
+    private static class UnflushedStream extends FilterOutputStream {
+        UnflushedStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        // Nor is it closed with the channel around it, which an interrupt closes
+        @Override
+        public void close() {
         }
     }
 }
@@ -0,0 +1,229 @@
+import java.io.*;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+// Serves shell sessions over a Unix-domain socket, so many clients can share one warm JVM. A session runs
+// commands with the server's own rights, so only its user may connect: the socket is made readable and
+// writable by the owner alone, and a client whose credentials name anyone else is turned away. There is no
+// TCP mode, since a port on the loopback interface is open to every user of the machine.
+// Every connection gets its own Shell, with its own current directory and console, on a thread of its own. A session reads one command per line and answers with the output followed by the prompt,
+// so a client knows a command has finished when the prompt arrives.
+// Idle sessions are kept small: the threads' stacks are reserved small, the session's buffers are a few
+// kilobytes, and the shell only allocates its larger buffers while a command is running.
+// Commands are read ahead on a thread of their own, so a client hanging up is noticed even while a command
+// such as tail -f is running; it cancels the session, which stops the command, and the shell is closed.
+public class ShellServer {
+    private static final long SESSION_STACK_SIZE = 256 * 1024;
+    private static final int SESSION_BUFFER_SIZE = 1024;
+    // Lines read ahead while a command runs, before reading waits for the session to catch up
+    private static final int READ_AHEAD = 16;
+    // Stands for the end of the input in the queue of lines
+    private static final String HANGUP = new String();
+    // File type bits of a unix mode, and the type of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final String address;
+    private final AtomicInteger sessions = new AtomicInteger();
+    // The server's user, as the owner of the socket it created
+    private UserPrincipal owner;
+
+    // The path of the Unix-domain socket to listen on
+    public ShellServer(String address) {
+        this.address = address;
+    }
+
+    // Accept sessions until the process is stopped
+    public void run() throws IOException {
+        try (ServerSocketChannel server = open()) {
+            System.out.println("Listening on " + server.getLocalAddress());
+            while (true) {
+                SocketChannel client = server.accept();
+                if (!isOwner(client)) {
+                    client.close();
+                    continue;
+                }
+                int id = sessions.incrementAndGet();
+                Thread session = new Thread(null, () -> serve(client, id), "session-" + id, SESSION_STACK_SIZE);
+                session.start();
+            }
+        }
+    }
+
+    private ServerSocketChannel open() throws IOException {
+        if (address.matches("\\d+")) {
+            throw new IOException("Listening on a TCP port is not supported, as any user could connect; give a socket path");
+        }
+        Path socket = Paths.get(address);
+        removeStaleSocket(socket);
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            socket.toFile().deleteOnExit();
+            owner = Files.getOwner(socket, LinkOption.NOFOLLOW_LINKS);
+            if (Files.getFileStore(socket).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                // Anyone connecting before this is still checked by isOwner()
+                Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            }
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    // Whether the client runs as the same user as the server. Where the platform can't tell, the socket's
+    // permissions are all there is.
+    private boolean isOwner(SocketChannel client) {
+        try {
+            UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return peer.user().equals(owner);
+        } catch (UnsupportedOperationException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Remove a socket left behind by a server that didn't shut down cleanly. Anything else at the path, or a
+    // socket another server still answers on, is left alone and the server doesn't start.
+    private static void removeStaleSocket(Path socket) throws IOException {
+        if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!isSocket(socket)) {
+            throw new IOException("Not a socket, refusing to replace it: " + socket);
+        }
+        try (SocketChannel live = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            throw new IOException("Another server is listening on " + socket);
+        } catch (ConnectException e) {
+            // Nobody is listening, so it is safe to take over
+        }
+        Files.delete(socket);
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // No unix view, as on Windows: a socket is at least not a file, directory or link
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    // Run one client's commands until it says exit, hangs up or stops taking output
+    private void serve(SocketChannel client, int id) {
+        Cancellation session = new Cancellation();
+        BlockingQueue<String> lines = new ArrayBlockingQueue<>(READ_AHEAD);
+        // The channel is closed before the reader, so a read waiting on it fails instead of holding up the close
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(readSide(client))), SESSION_BUFFER_SIZE);
+             PrintStream out = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(writeSide(client)), SESSION_BUFFER_SIZE), false);
+             client;
+             Shell shell = new Shell(out)) {
+            shell.setInteractive(true);
+            shell.setSession(session);
+            Thread reader = new Thread(null, () -> read(in, lines, session, shell), "session-" + id + "-input", SESSION_STACK_SIZE);
+            reader.setDaemon(true);
+            reader.start();
+            shell.printPrompt();
+            while (!out.checkError()) { // Which flushes the prompt
+                String input = lines.take();
+                if (input == HANGUP || session.isCancelled()) {
+                    break;
+                }
+                input = input.trim();
+                if (input.equalsIgnoreCase("exit")) {
+                    break;
+                }
+                if (!input.isEmpty()) {
+                    shell.handleCommand(input);
+                }
+                shell.printPrompt();
+            }
+        } catch (IOException e) {
+            // The client went away; its session goes with it
+        } catch (InterruptedException e) {
+            // Stopped along with the process
+        } finally {
+            session.cancel(); // Closing the channel ends the reader too
+        }
+    }
+
+    // The client's channel for reading and for writing. Streams made straight from a socket channel take one
+    // lock for both, so output would wait on the read ahead; the channel itself reads and writes independently.
+    private static ReadableByteChannel readSide(SocketChannel client) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                return client.read(buffer);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return client.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                client.close();
+            }
+        };
+    }
+
+    private static WritableByteChannel writeSide(SocketChannel client) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer buffer) throws IOException {
+                return client.write(buffer);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return client.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                client.close();
+            }
+        };
+    }
+
+    // Hand the client's lines to the session until the input ends, cancelling the session then
+    private static void read(BufferedReader in, BlockingQueue<String> lines, Cancellation session, Shell shell) {
+        try {
+            String line;
+            while (!session.isCancelled() && (line = in.readLine()) != null) {
+                lines.put(line);
+            }
+        } catch (IOException e) {
+            // Hung up, or the session closed the channel
+        } catch (InterruptedException e) {
+            return;
+        }
+        session.cancel();
+        shell.interrupt();
+        lines.offer(HANGUP); // Room or not, the session sees it is cancelled once it next looks
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// sort: orders the lines of the previous stage by the whole line, by a range of fields, or numerically.
+// Lines are gathered until they reach the memory budget, then sorted and written to a temporary file as a
+// sorted run, so input far larger than the heap only ever holds one budget's worth of lines plus one line
+// per run. The runs are merged with a heap; when there are more runs than can be open at once, groups of
+// them are merged into longer runs first. Runs are sorted with the parallel sort, spreading them over the
+// cores.
+// Lines that compare equal on their key are ordered by the whole line, as GNU sort does without -s.
+public class Sort {
+    private static final int MAX_MERGED_RUNS = 64;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    // Heap taken by a line beyond its characters: the String, its array and the list slot
+    private static final int LINE_OVERHEAD = 64;
+
+    private final Comparator<String> comparator;
+    private final long budget;
+
+    // Fields are numbered from 1; a last field of 0 runs the key to the end of the line
+    public Sort(boolean numeric, boolean reverse, int firstField, int lastField, long budget) {
+        Comparator<String> key = numeric ? new NumericKey(firstField, lastField) : new TextKey(firstField, lastField);
+        Comparator<String> ordering = firstField == 0 && !numeric ? key : key.thenComparing(Comparator.naturalOrder());
+        this.comparator = reverse ? ordering.reversed() : ordering;
+        this.budget = budget;
+    }
+
+    // The budget used when none is given: a slice of the heap, leaving room for the pipe's other stages
+    public static long defaultBudget() {
+        return Math.max(1 << 20, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    public LineSource apply(LineSource input) {
+        return new LineSource() {
+            private final List<Path> runs = new ArrayList<>();
+            private LineSource sorted;
+
+            @Override
+            public String nextLine() throws IOException {
+                if (sorted == null) {
+                    sorted = sort(input, runs);
+                }
+                return sorted.nextLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    input.close();
+                    if (sorted != null) {
+                        sorted.close();
+                    }
+                } finally {
+                    deleteRuns(runs);
+                }
+            }
+        };
+    }
+
+    // Read all of the input, spilling sorted runs to disk whenever the budget fills up
+    private LineSource sort(LineSource input, List<Path> runs) throws IOException {
+        List<String> lines = new ArrayList<>();
+        long used = 0;
+        String line;
+        while ((line = input.nextLine()) != null) {
+            lines.add(line);
+            used += LINE_OVERHEAD + 2L * line.length();
+            if (used >= budget) {
+                runs.add(writeRun(sorted(lines)));
+                lines.clear();
+                used = 0;
+            }
+        }
+        input.close();
+        String[] last = sorted(lines);
+        if (runs.isEmpty()) {
+            return LineSource.of(Arrays.asList(last));
+        }
+        if (last.length > 0) {
+            runs.add(writeRun(last));
+        }
+        lines = null;
+        while (runs.size() > MAX_MERGED_RUNS) {
+            List<Path> group = new ArrayList<>(runs.subList(0, MAX_MERGED_RUNS));
+            runs.subList(0, MAX_MERGED_RUNS).clear();
+            runs.add(mergeToRun(group));
+        }
+        return merge(runs);
+    }
+
+    private String[] sorted(List<String> lines) {
+        String[] array = lines.toArray(new String[0]);
+        Arrays.parallelSort(array, comparator);
+        return array;
+    }
+
+    private static Path writeRun(String[] lines) throws IOException {
+        Path run = createRun();
+        try (Writer writer = runWriter(run)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        return run;
+    }
+
+    private static Path createRun() throws IOException {
+        Metrics.fsCall(Metrics.FsCall.CREATE);
+        Path run = Files.createTempFile("shell-sort", ".run");
+        run.toFile().deleteOnExit(); // In case the shell is stopped in the middle of a sort
+        return run;
+    }
+
+    private static Writer runWriter(Path run) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        FileChannel channel = FileChannel.open(run, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new ChannelWriter(channel, StandardCharsets.UTF_8, ByteBuffer.allocate(WRITE_BUFFER_SIZE),
+                ChannelWriter.SyncPolicy.OFF);
+    }
+
+    // Merge a group of runs into one longer run, deleting them
+    private Path mergeToRun(List<Path> group) throws IOException {
+        Path merged = createRun();
+        try (LineSource lines = merge(group); Writer writer = runWriter(merged)) {
+            String line;
+            while ((line = lines.nextLine()) != null) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        deleteRuns(group);
+        return merged;
+    }
+
+    // The runs' lines in order, taking the smallest head line of all the runs each time
+    private LineSource merge(List<Path> runs) throws IOException {
+        List<FileSource> sources = new ArrayList<>();
+        PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> {
+            int order = comparator.compare(a.line, b.line);
+            return order != 0 ? order : Integer.compare(a.run, b.run);
+        });
+        try {
+            for (Path run : runs) {
+                FileSource source = new FileSource(run.toFile(), StandardCharsets.UTF_8);
+                sources.add(source);
+                String line = source.nextLine();
+                if (line != null) {
+                    heads.add(new Head(line, sources.size() - 1));
+                }
+            }
+        } catch (IOException e) {
+            closeAll(sources);
+            throw e;
+        }
+        return new LineSource() {
+            @Override
+            public String nextLine() throws IOException {
+                Head head = heads.poll();
+                if (head == null) {
+                    return null;
+                }
+                String line = head.line;
+                head.line = sources.get(head.run).nextLine();
+                if (head.line != null) {
+                    heads.add(head);
+                }
+                return line;
+            }
+
+            @Override
+            public void close() throws IOException {
+                closeAll(sources);
+            }
+        };
+    }
+
+    private static class Head {
+        String line;
+        final int run;
+
+        Head(String line, int run) {
+            this.line = line;
+            this.run = run;
+        }
+    }
+
+    private static void closeAll(List<FileSource> sources) throws IOException {
+        IOException failure = null;
+        for (FileSource source : sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void deleteRuns(List<Path> runs) {
+        for (Path run : runs) {
+            try {
+                Metrics.fsCall(Metrics.FsCall.DELETE);
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                // Left for deleteOnExit
+            }
+        }
+        runs.clear();
+    }
+
+    // Offset where field begins, counting a field as its leading blanks and the non-blanks after them
+    static int fieldStart(String line, int field) {
+        int i = 0;
+        for (int f = 1; f < field && i < line.length(); f++) {
+            while (i < line.length() && isBlank(line.charAt(i))) {
+                i++;
+            }
+            while (i < line.length() && !isBlank(line.charAt(i))) {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    // Offset just past the end of field, or the end of the line for field 0
+    static int fieldEnd(String line, int field) {
+        if (field == 0) {
+            return line.length();
+        }
+        int i = fieldStart(line, field);
+        while (i < line.length() && isBlank(line.charAt(i))) {
+            i++;
+        }
+        while (i < line.length() && !isBlank(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    // Compares the characters of the key range, without copying them out of the line
+    private static class TextKey implements Comparator<String> {
+        private final int firstField;
+        private final int lastField;
+
+        TextKey(int firstField, int lastField) {
+            this.firstField = firstField;
+            this.lastField = lastField;
+        }
+
+        @Override
+        public int compare(String a, String b) {
+            if (firstField == 0) {
+                return a.compareTo(b);
+            }
+            int i = fieldStart(a, firstField);
+            int aEnd = Math.max(i, fieldEnd(a, lastField));
+            int j = fieldStart(b, firstField);
+            int bEnd = Math.max(j, fieldEnd(b, lastField));
+            while (i < aEnd && j < bEnd) {
+                int order = Character.compare(a.charAt(i++), b.charAt(j++));
+                if (order != 0) {
+                    return order;
+                }
+            }
+            return Integer.compare(aEnd - i, bEnd - j);
+        }
+    }
+
+    // Compares the number at the start of the key, after any blanks; a key that doesn't start with a number
+    // counts as zero
+    private static class NumericKey implements Comparator<String> {
+        private final int firstField;
+        private final int lastField;
+
+        NumericKey(int firstField, int lastField) {
+            this.firstField = firstField;
+            this.lastField = lastField;
+        }
+
+        @Override
+        public int compare(String a, String b) {
+            return Double.compare(value(a), value(b));
+        }
+
+        private double value(String line) {
+            int i = firstField == 0 ? 0 : fieldStart(line, firstField);
+            int end = firstField == 0 ? line.length() : fieldEnd(line, lastField);
+            while (i < end && isBlank(line.charAt(i))) {
+                i++;
+            }
+            boolean negative = i < end && line.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+            double value = 0;
+            while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+                value = value * 10 + (line.charAt(i++) - '0');
+            }
+            if (i < end && line.charAt(i) == '.') {
+                double scale = 0.1;
+                for (i++; i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9'; i++) {
+                    value += (line.charAt(i) - '0') * scale;
+                    scale /= 10;
+                }
+            }
+            return negative ? -value : value;
+        }
+    }
+}
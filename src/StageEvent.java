@@ -0,0 +1,30 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight Recorder event spanning one stage of a pipe, from its start until its output is used up or closed
+@Name("shell.Stage")
+@Label("Shell Pipe Stage")
+@Category("Shell")
+@Description("One command in a pipe and the lines that went through it")
+public class StageEvent extends Event {
+    @Label("Command")
+    public String command;
+
+    @Label("Lines In")
+    public long linesIn;
+
+    @Label("Lines Out")
+    public long linesOut;
+
+    @Label("Bytes In")
+    @DataAmount
+    public long bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    public long bytesOut;
+}
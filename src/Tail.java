@@ -0,0 +1,332 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+// The end of a file or of a pipe, and following a file as it grows.
+// A file's last lines are found by reading blocks backward from its end until enough newlines have gone by,
+// so the cost depends on the lines shown and not on the size of the file. Following waits on a watch of the
+// file's directory instead of polling, and reads whatever was appended with positional reads.
+public class Tail {
+    private static final int BLOCK_SIZE = 1 << 16;
+    // Checked even without an event, for filesystems that don't report changes
+    private static final long FOLLOW_TIMEOUT_MILLIS = 1000;
+
+    private Tail() {
+    }
+
+    // The last count lines of a file, read forward from where the backward scan stopped
+    public static LineSource lastLines(File file, Charset charset, int count) throws IOException {
+        long start;
+        long end;
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            end = channel.size();
+            start = startOfLastLines(channel, end, count);
+        }
+        return new FileSource(file, charset, start, end);
+    }
+
+    // The last count lines of a file and then everything appended to it, until the stage is closed. A last
+    // line still being written is left to the follower, which holds it back until its newline arrives.
+    public static LineSource follow(File file, Charset charset, int count) throws IOException {
+        long start;
+        long end;
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            end = channel.size();
+            start = startOfLastLines(channel, end, count);
+            if (!endsWithNewline(channel, end)) {
+                end = startOfLastLines(channel, end, 1);
+                start = Math.min(start, end);
+            }
+        }
+        LineSource last = new FileSource(file, charset, start, end);
+        Follower follower;
+        try {
+            follower = new Follower(file.toPath(), charset, end);
+        } catch (IOException e) {
+            last.close();
+            throw e;
+        }
+        boolean empty = start == end;
+        return new LineSource() {
+            // Switched over as soon as the last lines run out, so ready() tells before the wait begins
+            private boolean following = empty;
+            // The next of the last lines, read ahead to know whether it is the final one
+            private String next;
+
+            @Override
+            public String nextLine() throws IOException {
+                if (!following) {
+                    String line = next != null ? next : last.nextLine();
+                    next = line == null ? null : last.nextLine();
+                    if (next == null) {
+                        last.close();
+                        following = true;
+                    }
+                    if (line != null) {
+                        return line;
+                    }
+                }
+                return follower.nextLine();
+            }
+
+            @Override
+            public boolean ready() {
+                return !following || follower.ready();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    last.close();
+                } finally {
+                    follower.close();
+                }
+            }
+        };
+    }
+
+    // The last count lines of a pipe, which has to be read to its end while only they are kept
+    public static LineSource lastLines(LineSource input, int count) {
+        return new LineSource() {
+            private Deque<String> lines;
+
+            @Override
+            public String nextLine() throws IOException {
+                if (lines == null) {
+                    lines = new ArrayDeque<>(Math.min(count, 1024));
+                    String line;
+                    while ((line = input.nextLine()) != null) {
+                        if (count == 0) {
+                            continue;
+                        }
+                        if (lines.size() == count) {
+                            lines.removeFirst();
+                        }
+                        lines.addLast(line);
+                    }
+                    input.close();
+                }
+                return lines.pollFirst();
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        };
+    }
+
+    // Whether the first end bytes of the file make up whole lines
+    private static boolean endsWithNewline(FileChannel channel, long end) throws IOException {
+        if (end == 0) {
+            return true;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        Metrics.fsCall(Metrics.FsCall.READ);
+        return channel.read(last, end - 1) == 1 && last.get(0) == '\n';
+    }
+
+    // Offset of the first of the last count lines, scanning [0, end) backward one block at a time.
+    // Only works for charsets where a '\n' byte is always a newline, which FileSource checks for.
+    static long startOfLastLines(FileChannel channel, long end, int count) throws IOException {
+        if (count == 0) {
+            return end;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        int newlines = 0;
+        long blockEnd = end;
+        while (blockEnd > 0) {
+            long blockStart = Math.max(0, blockEnd - BLOCK_SIZE);
+            int length = (int) (blockEnd - blockStart);
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                Metrics.fsCall(Metrics.FsCall.READ);
+                if (channel.read(buffer, blockStart + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                // The newline ending the file ends the last line rather than starting another
+                if (buffer.get(i) == '\n' && blockStart + i != end - 1 && ++newlines == count) {
+                    return blockStart + i + 1;
+                }
+            }
+            blockEnd = blockStart;
+        }
+        return 0;
+    }
+
+    // Lines appended to a file from a given offset on. A file that shrinks was truncated and is read again
+    // from the start; when another file takes its name, as log rotation does, the rest of the old one is
+    // read before switching to the new one.
+    private static class Follower implements LineSource {
+        private final Path path;
+        private final Charset charset;
+        private final WatchService watcher;
+        private final Deque<String> lines = new ArrayDeque<>();
+        private final Cancellation cancellation = Cancellation.current();
+        private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        private FileChannel channel;
+        private Object fileKey;
+        private long position;
+        // Bytes of a line whose newline hasn't been written yet
+        private byte[] partial = new byte[0];
+
+        Follower(Path path, Charset charset, long position) throws IOException {
+            this.path = path.toAbsolutePath();
+            this.charset = charset;
+            this.position = position;
+            this.watcher = this.path.getFileSystem().newWatchService();
+            Path dir = this.path.getParent();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            open();
+        }
+
+        private void open() throws IOException {
+            Metrics.fsCall(Metrics.FsCall.OPEN);
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        }
+
+        @Override
+        public String nextLine() throws IOException {
+            while (lines.isEmpty()) {
+                if (readAppended()) {
+                    continue;
+                }
+                if (replaced()) {
+                    // Everything the old file had is read; a line it left unfinished won't be finished now
+                    flushPartial();
+                    channel.close();
+                    open();
+                    position = 0;
+                    continue;
+                }
+                awaitChange();
+            }
+            return lines.removeFirst();
+        }
+
+        @Override
+        public boolean ready() {
+            try {
+                return !lines.isEmpty() || channel.size() != position;
+            } catch (IOException e) {
+                return true; // Let nextLine() report it
+            }
+        }
+
+        // Read what was appended since the last read, returning whether there was anything
+        private boolean readAppended() throws IOException {
+            long size = channel.size();
+            if (size < position) {
+                position = 0; // Truncated
+                partial = new byte[0];
+            }
+            if (size == position) {
+                return false;
+            }
+            buffer.clear();
+            Metrics.fsCall(Metrics.FsCall.READ);
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return false;
+            }
+            position += read;
+            byte[] bytes = buffer.array();
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == '\n') {
+                    addLine(bytes, start, i);
+                    start = i + 1;
+                }
+            }
+            int rest = read - start;
+            byte[] grown = Arrays.copyOf(partial, partial.length + rest);
+            System.arraycopy(bytes, start, grown, partial.length, rest);
+            partial = grown;
+            return true;
+        }
+
+        private void addLine(byte[] bytes, int from, int to) {
+            byte[] line = bytes;
+            if (partial.length > 0) {
+                line = Arrays.copyOf(partial, partial.length + to - from);
+                System.arraycopy(bytes, from, line, partial.length, to - from);
+                from = 0;
+                to = line.length;
+                partial = new byte[0];
+            }
+            if (to > from && line[to - 1] == '\r') {
+                to--;
+            }
+            lines.addLast(new String(line, from, to - from, charset));
+        }
+
+        private void flushPartial() {
+            if (partial.length > 0) {
+                byte[] line = partial;
+                partial = new byte[0];
+                addLine(line, 0, line.length);
+            }
+        }
+
+        // Whether the name now belongs to a different file than the one being read
+        private boolean replaced() throws IOException {
+            Object current;
+            try {
+                Metrics.fsCall(Metrics.FsCall.STAT);
+                current = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            } catch (NoSuchFileException e) {
+                return false; // Rotated away and not recreated yet
+            }
+            return current != null && !Objects.equals(current, fileKey);
+        }
+
+        // Sleep until something in the file's directory changes, or the timeout passes
+        private void awaitChange() throws IOException {
+            Cancellation.check(cancellation);
+            try {
+                WatchKey key = watcher.poll(FOLLOW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Follow interrupted");
+            } catch (ClosedWatchServiceException e) {
+                throw new InterruptedIOException("Follow closed");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                watcher.close();
+            }
+        }
+    }
+}
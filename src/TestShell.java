@@ -5,7 +5,11 @@ import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
 
 public class TestShell {
     private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
@@ -203,4 +207,509 @@ public class TestShell {
 
         Assertions.assertEquals(expectedOutput, PipeOutput);
     }
+
+    @Test
+    public void TestCatPipe() {
+        shell.handleCommand("cat src/test/helpContent.txt | grep new | grep file");
+
+        String PipeOutput = outContent.toString().trim();
+
+        Assertions.assertEquals("touch <file_name>               Create a new file", PipeOutput);
+    }
+
+    @Test
+    public void TestGrepOptions() {
+        shell.handleCommand("grep -c NEW src/test/helpContent.txt");
+        Assertions.assertEquals("0", outContent.toString().trim());
+
+        outContent.reset();
+        shell.handleCommand("grep -ic NEW src/test/helpContent.txt");
+        Assertions.assertEquals("2", outContent.toString().trim());
+
+        outContent.reset();
+        shell.handleCommand("grep -n new src/test/helpContent.txt");
+        String expectedOutput = "4:  mkdir <directory_name>          Create a new directory\n8:  touch <file_name>               Create a new file";
+        Assertions.assertEquals(expectedOutput, outContent.toString().trim());
+
+        outContent.reset();
+        shell.handleCommand("help | grep -vc e");
+        Assertions.assertEquals("0", outContent.toString().trim());
+    }
+
+    @Test
+    public void TestGrepRegex() {
+        shell.handleCommand("grep -E \"^  c[ad]t? \" src/test/helpContent.txt");
+
+        String expectedOutput = "cat <file_name>                 Display file contents\n  cd <directory>                  Change the current directory";
+        Assertions.assertEquals(expectedOutput, outContent.toString().trim());
+
+        outContent.reset();
+        shell.handleCommand("help | grep -Eic \"^  [A-Z]+ <[a-z_]+>  \"");
+        Assertions.assertEquals("6", outContent.toString().trim());
+    }
+
+    @Test
+    public void TestGrepRecursive() {
+        shell.handleCommand("grep -rn new src/test");
+
+        String prefix = "src/test" + File.separator + "helpContent.txt:";
+        String expectedOutput = prefix + "4:  mkdir <directory_name>          Create a new directory\n"
+                + prefix + "8:  touch <file_name>               Create a new file";
+        Assertions.assertEquals(expectedOutput, outContent.toString().trim());
+    }
+
+    @Test
+    public void TestLsRecursive() {
+        shell.handleCommand("ls -r src");
+
+        String output = outContent.toString().trim();
+        String expectedEntry = new File(System.getProperty("user.dir"), "src") + File.separator + "test"
+                + File.separator + "test.txt";
+        Assertions.assertTrue(output.contains("\ntest\n") || output.startsWith("test\n"));
+        Assertions.assertTrue(output.contains(expectedEntry));
+
+        outContent.reset();
+
+        shell.handleCommand("ls -rP src");
+
+        Assertions.assertEquals(output, outContent.toString().trim());
+    }
+
+    @Test
+    public void TestCache() {
+        shell.handleCommand("cache on");
+        shell.handleCommand("ls src/test");
+        shell.handleCommand("touch src/test/myTest.txt");
+
+        outContent.reset();
+
+        shell.handleCommand("ls src/test");
+
+        String output = outContent.toString().trim();
+        Assertions.assertTrue(output.contains("myTest.txt"));
+
+        outContent.reset();
+
+        shell.handleCommand("cache stats");
+
+        output = outContent.toString().trim();
+        Assertions.assertTrue(output.contains("Hits: 1\nMisses: 1"));
+
+        shell.handleCommand("rm src/test/myTest.txt");
+        shell.handleCommand("cache off");
+    }
+
+    @Test
+    public void TestQuotedPipe() {
+        shell.handleCommand("echo \"a | b\" c\\ d");
+
+        Assertions.assertEquals("a | b c d", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("help | cat | grep -E \"(mkdir|touch) \" | grep -c new");
+
+        Assertions.assertEquals("2", outContent.toString().trim());
+    }
+
+    @Test
+    public void TestCommandStatus() {
+        Assertions.assertTrue(shell.handleCommand("echo ok"));
+        Assertions.assertFalse(shell.handleCommand("nope"));
+        Assertions.assertFalse(shell.handleCommand("cat src/test/missing.txt"));
+        Assertions.assertTrue(shell.handleCommand("cat src/test/test.txt | grep test"));
+    }
+
+    @Test
+    public void TestRedirectMessages() throws Exception {
+        File output = new File("src/test/myOutput.txt");
+        File messages = new File("src/test/myMessages.txt");
+
+        shell.handleCommand("cat src/test/test.txt | grep test > src/test/myOutput.txt");
+        shell.handleCommand("cat src/test/missing.txt 2> src/test/myMessages.txt");
+        shell.handleCommand("echo again >> src/test/myOutput.txt 2>> src/test/myMessages.txt");
+
+        Assertions.assertEquals("", outContent.toString());
+        Assertions.assertEquals("this is a test file\nagain\n", Files.readString(output.toPath()));
+        Assertions.assertEquals("File not found: src/test/missing.txt\n", Files.readString(messages.toPath()));
+
+        shell.handleCommand("touch src/test/myTouched.txt &> src/test/myOutput.txt");
+
+        Assertions.assertEquals("File created: src/test/myTouched.txt\n", Files.readString(output.toPath()));
+
+        new File("src/test/myTouched.txt").delete();
+        output.delete();
+        messages.delete();
+    }
+
+    @Test
+    public void TestStats() {
+        shell.handleCommand("stats on");
+        shell.handleCommand("stats reset");
+        shell.handleCommand("cat src/test/helpContent.txt | grep new");
+        shell.handleCommand("cat src/test/missing.txt");
+
+        outContent.reset();
+
+        shell.handleCommand("stats");
+
+        String output = outContent.toString();
+        Assertions.assertTrue(output.contains("  cat | grep: 1 runs"));
+        Assertions.assertTrue(output.contains("  cat: 1 runs"));
+        Assertions.assertTrue(output.contains("lines 0 in 17 out"));
+        Assertions.assertTrue(output.contains("lines 17 in 2 out"));
+        Assertions.assertTrue(output.contains("Errors: 1"));
+
+        outContent.reset();
+
+        shell.handleCommand("stats json");
+
+        Assertions.assertTrue(outContent.toString().contains("\"cat | grep\": {\"count\": 1"));
+
+        shell.handleCommand("stats off");
+    }
+
+    @Test
+    public void TestSeparateConsoles() {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        Shell firstShell = new Shell(new PrintStream(first, true));
+        Shell secondShell = new Shell(new PrintStream(second, true));
+
+        firstShell.handleCommand("cd src");
+        first.reset();
+        firstShell.handleCommand("pwd");
+        secondShell.handleCommand("pwd");
+
+        Assertions.assertEquals(new File("src").getAbsolutePath(), first.toString().trim());
+        Assertions.assertEquals(System.getProperty("user.dir"), second.toString().trim());
+        Assertions.assertEquals("", outContent.toString());
+    }
+
+    @Test
+    public void TestCpRecursive() throws Exception {
+        shell.handleCommand("cd src/test");
+        shell.handleCommand("mkdir myTestDir");
+        shell.handleCommand("mkdir myTestDir/inner");
+        shell.handleCommand("cp test.txt myTestDir/inner");
+        shell.handleCommand("cp -r myTestDir myCopy");
+
+        outContent.reset();
+
+        shell.handleCommand("cat myCopy/inner/test.txt");
+
+        Assertions.assertEquals("this is a test file", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("cp myTestDir other");
+
+        Assertions.assertEquals("Omitting directory without -r: myTestDir", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("cp test.txt test.txt");
+
+        Assertions.assertEquals("'test.txt' and 'test.txt' are the same file", outContent.toString().trim());
+
+        // Permission bits are always kept, modification times with -p
+        File script = new File("src/test/myTestDir/run.sh");
+        Files.writeString(script.toPath(), "echo run\n");
+        Assertions.assertTrue(script.setExecutable(true));
+        Assertions.assertTrue(script.setLastModified(1577836800000L));
+        shell.handleCommand("cp -rp myTestDir myKept");
+
+        Assertions.assertTrue(new File("src/test/myKept/run.sh").canExecute());
+        Assertions.assertEquals(1577836800000L, new File("src/test/myKept/run.sh").lastModified());
+
+        shell.handleCommand("rm -r myKept");
+
+        shell.handleCommand("rm -r myCopy");
+        shell.handleCommand("rm -r myTestDir");
+
+        Assertions.assertFalse(new File("src/test/myCopy").exists());
+        Assertions.assertFalse(new File("src/test/myTestDir").exists());
+    }
+
+    @Test
+    public void TestHeadTail() {
+        shell.handleCommand("head -n 1 src/test/helpContent.txt");
+
+        Assertions.assertEquals("Available commands:", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("tail -n 1 src/test/helpContent.txt");
+
+        Assertions.assertEquals("exit                            Exit the shell", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("cat src/test/helpContent.txt | grep new | tail -n 1");
+
+        Assertions.assertEquals("touch <file_name>               Create a new file", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("cat src/test/helpContent.txt | head -n 3 | tail -n 1");
+
+        Assertions.assertEquals("ls [-a] [-r]                    List files in the current directory", outContent.toString().trim());
+    }
+
+    @Test
+    public void TestIndexGrep() {
+        shell.handleCommand("du -s src/test");
+        String usage = outContent.toString();
+
+        outContent.reset();
+
+        shell.handleCommand("index build src/test");
+
+        Assertions.assertTrue(outContent.toString().startsWith("Indexed 2 files (2 read, 0 unchanged, 0 not indexed)"));
+
+        outContent.reset();
+
+        // The index is kept outside the tree, so nothing walking it sees the index
+        shell.handleCommand("find src/test");
+
+        Assertions.assertEquals("src/test\nsrc/test/helpContent.txt\nsrc/test/test.txt",
+                outContent.toString().trim().replace(File.separatorChar, '/'));
+
+        outContent.reset();
+
+        shell.handleCommand("du -s src/test");
+
+        Assertions.assertEquals(usage, outContent.toString());
+
+        outContent.reset();
+
+        shell.handleCommand("index grep -n test src/test");
+
+        Assertions.assertEquals("src/test/test.txt:1:this is a test file", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("echo another test > src/test/other.txt");
+        shell.handleCommand("index build src/test");
+
+        Assertions.assertTrue(outContent.toString().startsWith("Indexed 3 files (1 read, 2 unchanged, 0 not indexed)"));
+
+        outContent.reset();
+
+        shell.handleCommand("index grep -i ANOTHER src/test");
+
+        Assertions.assertEquals("src/test/other.txt:another test", outContent.toString().trim());
+
+        outContent.reset();
+
+        // Files edited or added since the build are searched without rebuilding
+        shell.handleCommand("echo an edited line > src/test/other.txt");
+        shell.handleCommand("echo a late edit > src/test/late.txt");
+        shell.handleCommand("index grep -c edit src/test");
+
+        Assertions.assertEquals("src/test/late.txt:1\nsrc/test/other.txt:1", outContent.toString().trim());
+
+        shell.handleCommand("rm src/test/late.txt");
+        shell.handleCommand("rm src/test/other.txt");
+        shell.handleCommand("index drop src/test");
+        shell.handleCommand("index grep test src/test");
+
+        Assertions.assertTrue(outContent.toString().endsWith("No index found: src/test\n"));
+    }
+
+    @Test
+    public void TestSortUniq() {
+        shell.handleCommand("sort -r src/test/helpContent.txt | head -n 1");
+
+        Assertions.assertEquals("Available commands:", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("cat src/test/helpContent.txt | grep -i file | sort -k 2,2 | head -n 1");
+
+        Assertions.assertEquals("cat <file_name>                 Display file contents", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("sort src/test/helpContent.txt | uniq -c | head -n 1");
+
+        Assertions.assertEquals("1   cat <file_name>                 Display file contents", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("sort -S64M -r src/test/helpContent.txt | head -n 1");
+
+        Assertions.assertEquals("Available commands:", outContent.toString().trim());
+    }
+
+    @Test
+    public void TestBytePipe() throws Exception {
+        File input = new File("src/test/myBytes.txt");
+        File output = new File("src/test/myOutput.txt");
+        byte[] bytes = "caf\u00e9 ok\r\nskip\nna\u00efve ok\n".getBytes(StandardCharsets.UTF_8);
+        Files.write(input.toPath(), bytes);
+
+        shell.handleCommand("cat src/test/myBytes.txt | grep ok | head -n 5 > src/test/myOutput.txt");
+
+        byte[] expected = "caf\u00e9 ok\nna\u00efve ok\n".getBytes(StandardCharsets.UTF_8);
+        Assertions.assertArrayEquals(expected, Files.readAllBytes(output.toPath()));
+
+        input.delete();
+        output.delete();
+    }
+
+    @Test
+    public void TestBackgroundJobs() {
+        shell.handleCommand("grep -c new src/test/helpContent.txt &");
+        shell.handleCommand("wait");
+
+        Assertions.assertEquals("[1] grep -c new src/test/helpContent.txt\n2\n[1] Done     grep -c new src/test/helpContent.txt",
+                outContent.toString().trim().replace("\r\n", "\n"));
+
+        outContent.reset();
+
+        shell.handleCommand("tail -f src/test/helpContent.txt &");
+        shell.handleCommand("jobs");
+
+        Assertions.assertTrue(outContent.toString().contains("[1] Running  tail -f src/test/helpContent.txt &"));
+
+        outContent.reset();
+
+        shell.handleCommand("kill %1");
+        shell.handleCommand("wait");
+        shell.handleCommand("jobs");
+
+        Assertions.assertTrue(outContent.toString().trim().endsWith("[1] Killed   tail -f src/test/helpContent.txt"));
+    }
+
+    @Test
+    public void TestFind() {
+        shell.handleCommand("find src/test -name \"*.txt\" -type f -size -100k | sort");
+
+        String prefix = "src/test" + File.separator;
+        Assertions.assertEquals(prefix + "helpContent.txt\n" + prefix + "test.txt", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("find src -maxdepth 1 -type d | sort");
+
+        Assertions.assertEquals("src\nsrc" + File.separator + "test", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("find src/test -mtime +100000");
+
+        Assertions.assertEquals("", outContent.toString().trim());
+    }
+
+    @Test
+    public void TestDu() {
+        shell.handleCommand("du -h src/test/test.txt");
+
+        Assertions.assertEquals("19\tsrc/test/test.txt", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("du src | grep -c src");
+
+        Assertions.assertEquals("2", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("du -s src | grep -c src");
+
+        Assertions.assertEquals("1", outContent.toString().trim());
+    }
+
+    @Test
+    public void TestGzip() throws Exception {
+        File compressed = new File("src/test/myLog.gz");
+        // Two members one after another, as appended rotated logs are
+        try (FileOutputStream out = new FileOutputStream(compressed)) {
+            for (String text : new String[]{"first line\nsecond line\n", "third line\n"}) {
+                GZIPOutputStream member = new GZIPOutputStream(out);
+                member.write(text.getBytes(StandardCharsets.UTF_8));
+                member.finish();
+            }
+        }
+
+        shell.handleCommand("cat src/test/myLog.gz");
+
+        Assertions.assertEquals("first line\nsecond line\nthird line", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("grep -c line src/test/myLog.gz");
+
+        Assertions.assertEquals("3", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("grep -r third src/test");
+
+        Assertions.assertEquals("src/test" + File.separator + "myLog.gz:third line", outContent.toString().trim());
+
+        outContent.reset();
+
+        // The magic bytes alone don't make a gzip file
+        Files.write(compressed.toPath(), new byte[]{0x1f, (byte) 0x8b, 7, 0, 'h', 'i', '\n'});
+
+        shell.handleCommand("cat src/test/myLog.gz");
+
+        Assertions.assertEquals("Error reading file: Not in gzip format", outContent.toString().trim());
+
+        compressed.delete();
+    }
+
+    @Test
+    public void TestChecksums() throws Exception {
+        Files.writeString(new File("src/test/first.txt").toPath(), "abc\n");
+        Files.writeString(new File("src/test/second.txt").toPath(), "abc\n");
+
+        shell.handleCommand("sha256sum src/test/first.txt");
+
+        Assertions.assertEquals("edeaaff3f1774ad2888673770c6d64097e391bc362d7d6fb34982ddf0efd18cb  src/test/first.txt",
+                outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("md5sum src/test/second.txt > src/test/sums.md5");
+        shell.handleCommand("md5sum -c src/test/sums.md5");
+
+        Assertions.assertEquals("src/test/second.txt: OK", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("dupes src/test");
+
+        Assertions.assertEquals("src/test" + File.separator + "first.txt\nsrc/test" + File.separator + "second.txt",
+                outContent.toString().trim());
+
+        new File("src/test/first.txt").delete();
+        new File("src/test/second.txt").delete();
+        new File("src/test/sums.md5").delete();
+    }
+
+    @Test
+    public void TestXargs() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            Files.writeString(new File("src/test/part" + i + ".txt").toPath(), "part " + i + "\n");
+        }
+
+        shell.handleCommand("find src/test -name part*.txt | sort | xargs -P 2 cat");
+
+        Assertions.assertEquals("part 1\npart 2\npart 3", outContent.toString().trim());
+
+        outContent.reset();
+
+        shell.handleCommand("find src/test -name part*.txt | xargs -P 4 -u rm");
+
+        Assertions.assertEquals(3, outContent.toString().split("File removed").length - 1);
+
+        outContent.reset();
+
+        shell.handleCommand("find src/test -name part*.txt");
+
+        Assertions.assertEquals("", outContent.toString().trim());
+    }
 }
@@ -0,0 +1,719 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+// An on-disk trigram index of the files under a directory, for narrowing a search down to the files that
+// can contain a literal before any of them is read.
+// Every run of three bytes in a file, with ASCII letters folded to lower case, is a trigram; the index keeps a
+// list of the files containing each one. A file can only contain a literal if it has all of the literal's
+// trigrams, so intersecting their lists gives the candidates. Binary files, very large files and files with
+// too many distinct trigrams aren't indexed and are always candidates.
+//
+// Layout, big-endian: a header (magic, version, file count, key count, postings offset, keys offset), then
+// each file's relative path, size, modification time and whether it is indexed, then every trigram's list of
+// file ids as delta-encoded varints, then the trigrams in ascending order with their list's length and offset.
+// A loaded index is memory-mapped and searched in place; only the file table is decoded. A search stats the
+// tree again, so files changed or added since the build are searched too, read in full.
+// Rebuilding reuses the lists of files whose size and modification time haven't changed, so only new and
+// changed files are read again.
+// Indexes live in a per-user cache directory, named by a hash of the root's absolute path, so they never show
+// up in the tree itself, to be listed, copied or counted by other commands.
+public class TrigramIndex implements Closeable {
+    private static final Path DIRECTORY = cacheDirectory().resolve("shell-index");
+
+    private static final int MAGIC = 0x53485449; // "SHTI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int KEY_ENTRY_SIZE = 16;
+    private static final long MAX_INDEXED_SIZE = 1L << 30;
+    private static final int MAX_TRIGRAMS = 1 << 16;
+    private static final int READ_BLOCK_SIZE = 1 << 16;
+
+    private static final ThreadLocal<TrigramSet> TRIGRAM_SETS = ThreadLocal.withInitial(TrigramSet::new);
+
+    private final Path root;
+    private final Path file;
+    private final Object fileKey;
+    private final long modified;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final String[] paths;
+    private final long[] sizes;
+    private final long[] modifiedTimes;
+    private final boolean[] indexed;
+    // File ids by relative path
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final int keyCount;
+    private final long postingsOffset;
+    private final long keysOffset;
+
+    private TrigramIndex(Path root) throws IOException {
+        this.root = root;
+        this.file = fileFor(root);
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            this.fileKey = attributes.fileKey();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Index too large to map: " + file);
+            }
+            Metrics.fsCall(Metrics.FsCall.MAP);
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not an index: " + file);
+            }
+            int fileCount = buffer.getInt(8);
+            this.keyCount = buffer.getInt(12);
+            this.postingsOffset = buffer.getLong(16);
+            this.keysOffset = buffer.getLong(24);
+            this.paths = new String[fileCount];
+            this.sizes = new long[fileCount];
+            this.modifiedTimes = new long[fileCount];
+            this.indexed = new boolean[fileCount];
+            ByteBuffer table = buffer.duplicate().position(HEADER_SIZE);
+            for (int i = 0; i < fileCount; i++) {
+                byte[] path = new byte[table.getInt()];
+                table.get(path);
+                paths[i] = new String(path, StandardCharsets.UTF_8);
+                sizes[i] = table.getLong();
+                modifiedTimes[i] = table.getLong();
+                indexed[i] = table.get() != 0;
+                ids.put(paths[i], i);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Corrupt index: " + file, e);
+        }
+    }
+
+    // The index built for root, which must exist
+    public static TrigramIndex load(Path root) throws IOException {
+        return new TrigramIndex(root);
+    }
+
+    // Remove the index built for root, returning whether there was one
+    public static boolean drop(Path root) throws IOException {
+        Metrics.fsCall(Metrics.FsCall.DELETE);
+        return Files.deleteIfExists(fileFor(root));
+    }
+
+    // Where the index of root is kept; root must be absolute and normalized
+    static Path fileFor(Path root) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(root.toString().getBytes(StandardCharsets.UTF_8));
+            return DIRECTORY.resolve(Checksums.hex(hash).substring(0, 32));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform has SHA-256
+        }
+    }
+
+    // $XDG_CACHE_HOME, or ~/.cache as it defaults to
+    private static Path cacheDirectory() {
+        String cache = System.getenv("XDG_CACHE_HOME");
+        if (cache != null && Path.of(cache).isAbsolute()) {
+            return Path.of(cache);
+        }
+        return Path.of(System.getProperty("user.home"), ".cache");
+    }
+
+    // Whether the index on disk has been rebuilt since this one was loaded
+    public boolean isStale() {
+        try {
+            Metrics.fsCall(Metrics.FsCall.STAT);
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return !Objects.equals(attributes.fileKey(), fileKey) || attributes.lastModifiedTime().toMillis() != modified;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public int fileCount() {
+        return paths.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Files that can contain the literal, in path order. A literal shorter than a trigram narrows nothing.
+    public List<Path> candidates(byte[] literal, Consumer<String> errors) {
+        int[] keys = trigrams(literal, 0, literal.length);
+        int[] matching = null;
+        if (keys.length > 0) {
+            // Intersect the shortest lists first, so the working set only shrinks
+            long[] byCount = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                int entry = findKey(keys[i]);
+                if (entry < 0) {
+                    matching = new int[0];
+                    break;
+                }
+                byCount[i] = (long) keyEntryCount(entry) << 32 | entry;
+            }
+            if (matching == null) {
+                Arrays.sort(byCount);
+                for (long countAndEntry : byCount) {
+                    int[] posting = posting((int) countAndEntry);
+                    matching = matching == null ? posting : intersect(matching, posting);
+                    if (matching.length == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        boolean[] listed = new boolean[paths.length];
+        if (matching == null) {
+            Arrays.fill(listed, true);
+        } else {
+            for (int id : matching) {
+                listed[id] = true;
+            }
+        }
+        return new ParallelWalker<>(new CandidateVisitor(listed, errors), false, true).walk(root);
+    }
+
+    // Walks the tree as it is now rather than trusting the file table: a file the index lists with the same
+    // size and modification time is a candidate when its lists say so, while files added or changed since the
+    // build always are, and removed ones are left out
+    private class CandidateVisitor implements ParallelWalker.Visitor<List<Path>> {
+        private final boolean[] listed;
+        private final Consumer<String> errors;
+
+        CandidateVisitor(boolean[] listed, Consumer<String> errors) {
+            this.listed = listed;
+            this.errors = errors;
+        }
+
+        @Override
+        public List<Path> visitFile(Path file, BasicFileAttributes attributes, int depth) {
+            if (!attributes.isRegularFile()) {
+                return Collections.emptyList();
+            }
+            String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+            Integer id = ids.get(path);
+            boolean unchanged = id != null && sizes[id] == attributes.size()
+                    && modifiedTimes[id] == attributes.lastModifiedTime().toMillis();
+            if (unchanged && indexed[id] && !listed[id]) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(file);
+        }
+
+        @Override
+        public List<Path> postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth, List<List<Path>> children) {
+            List<Path> files = new ArrayList<>();
+            for (List<Path> child : children) {
+                files.addAll(child);
+            }
+            return files;
+        }
+
+        @Override
+        public List<Path> visitFailed(Path path, IOException e) {
+            errors.accept("Unable to read directory: " + path);
+            return Collections.emptyList();
+        }
+    }
+
+    private int findKey(int key) {
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int found = buffer.getInt((int) (keysOffset + (long) middle * KEY_ENTRY_SIZE));
+            if (found < key) {
+                low = middle + 1;
+            } else if (found > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private int keyEntryCount(int entry) {
+        return buffer.getInt((int) (keysOffset + (long) entry * KEY_ENTRY_SIZE + 4));
+    }
+
+    private int[] posting(int entry) {
+        int count = keyEntryCount(entry);
+        long offset = buffer.getLong((int) (keysOffset + (long) entry * KEY_ENTRY_SIZE + 8));
+        int[] ids = new int[count];
+        int position = (int) (postingsOffset + offset);
+        int id = -1;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int fold(byte b) {
+        return (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) & 0xff;
+    }
+
+    // Distinct trigrams of bytes[from, to), ascending
+    private static int[] trigrams(byte[] bytes, int from, int to) {
+        TrigramSet set = TRIGRAM_SETS.get();
+        int key = 0;
+        for (int i = from; i < to; i++) {
+            key = (key << 8 | fold(bytes[i])) & 0xffffff;
+            if (i - from >= 2) {
+                set.add(key);
+            }
+        }
+        return set.drain();
+    }
+
+    // Build or refresh the index of root, returning a summary of what was done
+    public static String build(Path root, Consumer<String> errors) throws IOException {
+        Map<String, Integer> previous = new HashMap<>();
+        TrigramIndex old = null;
+        if (Files.isRegularFile(fileFor(root))) {
+            try {
+                old = load(root);
+                for (int id = 0; id < old.paths.length; id++) {
+                    previous.put(old.paths[id], id);
+                }
+            } catch (IOException e) {
+                errors.accept("Rebuilding unreadable index: " + e.getMessage());
+            }
+        }
+        try {
+            List<Entry> entries = new ParallelWalker<>(new ScanVisitor(root, old, previous, errors), true, true).walk(root);
+            return write(root, entries, old);
+        } finally {
+            if (old != null) {
+                old.close();
+            }
+        }
+    }
+
+    // A file as found by the build: either reusing its lists from the old index or with its trigrams read afresh
+    private static class Entry {
+        final String path;
+        final long size;
+        final long modified;
+        final boolean indexed;
+        final int oldId;
+        final int[] trigrams;
+
+        Entry(String path, long size, long modified, boolean indexed, int oldId, int[] trigrams) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.indexed = indexed;
+            this.oldId = oldId;
+            this.trigrams = trigrams;
+        }
+    }
+
+    private static class ScanVisitor implements ParallelWalker.Visitor<List<Entry>> {
+        private final Path root;
+        private final TrigramIndex old;
+        private final Map<String, Integer> previous;
+        private final Consumer<String> errors;
+
+        ScanVisitor(Path root, TrigramIndex old, Map<String, Integer> previous, Consumer<String> errors) {
+            this.root = root;
+            this.old = old;
+            this.previous = previous;
+            this.errors = errors;
+        }
+
+        @Override
+        public List<Entry> visitFile(Path file, BasicFileAttributes attributes, int depth) {
+            if (!attributes.isRegularFile()) {
+                return Collections.emptyList();
+            }
+            String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            Integer oldId = previous.get(path);
+            if (oldId != null && old.sizes[oldId] == size && old.modifiedTimes[oldId] == modified) {
+                return Collections.singletonList(new Entry(path, size, modified, old.indexed[oldId], oldId, null));
+            }
+            int[] trigrams = null;
+            if (size <= MAX_INDEXED_SIZE) {
+                try {
+                    trigrams = readTrigrams(file);
+                } catch (IOException e) {
+                    errors.accept("Error reading file: " + file);
+                }
+            }
+            return Collections.singletonList(new Entry(path, size, modified, trigrams != null, -1, trigrams));
+        }
+
+        @Override
+        public List<Entry> postVisitDirectory(Path dir, BasicFileAttributes attributes, int depth, List<List<Entry>> children) {
+            List<Entry> entries = new ArrayList<>();
+            for (List<Entry> child : children) {
+                entries.addAll(child);
+            }
+            return entries;
+        }
+
+        @Override
+        public List<Entry> visitFailed(Path path, IOException e) {
+            errors.accept("Unable to read directory: " + path);
+            return Collections.emptyList();
+        }
+    }
+
+    // The file's distinct trigrams, or null when it shouldn't be indexed: it looks binary or has so many
+    // trigrams that its list entries would cost more than they narrow
+    private static int[] readTrigrams(Path file) throws IOException {
+        TrigramSet set = TRIGRAM_SETS.get();
+        Cancellation cancellation = Cancellation.current();
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocate(READ_BLOCK_SIZE);
+            int key = 0;
+            long seen = 0;
+            while (true) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    set.drain(); // The set stays with the pool thread, so leave it empty
+                    cancellation.check();
+                }
+                block.clear();
+                Metrics.fsCall(Metrics.FsCall.READ);
+                int read = channel.read(block);
+                if (read < 0) {
+                    break;
+                }
+                byte[] bytes = block.array();
+                for (int i = 0; i < read; i++) {
+                    if (bytes[i] == 0) {
+                        set.drain();
+                        return null;
+                    }
+                    key = (key << 8 | fold(bytes[i])) & 0xffffff;
+                    if (++seen >= 3) {
+                        set.add(key);
+                    }
+                }
+                if (set.size() > MAX_TRIGRAMS) {
+                    set.drain();
+                    return null;
+                }
+            }
+        }
+        return set.drain();
+    }
+
+    // Write the new index next to the old one and swap it in, so a reader never sees half an index
+    private static String write(Path root, List<Entry> entries, TrigramIndex old) throws IOException {
+        int[] remap = new int[old == null ? 0 : old.paths.length];
+        Arrays.fill(remap, -1);
+        PostingBuilder fresh = new PostingBuilder();
+        int reused = 0;
+        int unindexed = 0;
+        for (int id = 0; id < entries.size(); id++) {
+            Entry entry = entries.get(id);
+            if (entry.oldId >= 0) {
+                remap[entry.oldId] = id;
+                reused++;
+            } else if (entry.trigrams != null) {
+                for (int key : entry.trigrams) {
+                    fresh.add(key, id);
+                }
+            }
+            if (!entry.indexed) {
+                unindexed++;
+            }
+        }
+
+        Path target = fileFor(root);
+        Files.createDirectories(target.getParent());
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        int[] freshKeys = fresh.keys();
+        int keyCount = 0;
+        long postingsOffset;
+        long keysOffset;
+        Metrics.fsCall(Metrics.FsCall.OPEN);
+        try (CountingOutput counting = new CountingOutput(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16));
+             DataOutputStream out = new DataOutputStream(counting)) {
+            out.write(new byte[HEADER_SIZE]); // Filled in once the offsets are known
+            for (Entry entry : entries) {
+                byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(path.length);
+                out.write(path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeByte(entry.indexed ? 1 : 0);
+            }
+            postingsOffset = counting.written;
+
+            // Merge old and fresh lists key by key; both key sequences are ascending
+            int oldKeys = old == null ? 0 : old.keyCount;
+            List<long[]> keyTable = new ArrayList<>();
+            int i = 0;
+            int j = 0;
+            while (i < oldKeys || j < freshKeys.length) {
+                int oldKey = i < oldKeys ? old.buffer.getInt((int) (old.keysOffset + (long) i * KEY_ENTRY_SIZE)) : Integer.MAX_VALUE;
+                int freshKey = j < freshKeys.length ? freshKeys[j] : Integer.MAX_VALUE;
+                int key = Math.min(oldKey, freshKey);
+                int[] kept = key == oldKey ? remapped(old.posting(i++), remap) : new int[0];
+                int[] added = key == freshKey ? fresh.posting(freshKeys[j++]) : new int[0];
+                int[] merged = union(kept, added);
+                if (merged.length == 0) {
+                    continue;
+                }
+                long offset = counting.written - postingsOffset;
+                int last = -1;
+                for (int id : merged) {
+                    writeVarint(out, id - last);
+                    last = id;
+                }
+                keyTable.add(new long[]{key, merged.length, offset});
+            }
+            keysOffset = counting.written;
+            for (long[] keyEntry : keyTable) {
+                out.writeInt((int) keyEntry[0]);
+                out.writeInt((int) keyEntry[1]);
+                out.writeLong(keyEntry[2]);
+            }
+            keyCount = keyTable.size();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(keyCount).putLong(postingsOffset).putLong(keysOffset);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            Metrics.fsCall(Metrics.FsCall.WRITE);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+        Metrics.fsCall(Metrics.FsCall.RENAME);
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return "Indexed " + entries.size() + " files (" + (entries.size() - reused) + " read, " + reused + " unchanged, "
+                + unindexed + " not indexed), " + keyCount + " trigrams";
+    }
+
+    // Old ids of files that are still there, as new ids; the walk order keeps them ascending
+    private static int[] remapped(int[] ids, int[] remap) {
+        int[] result = new int[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            if (remap[id] >= 0) {
+                result[count++] = remap[id];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.length == 0) {
+            return b;
+        }
+        int[] result = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || i < a.length && a[i] < b[j]) {
+                result[count++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[count++] = b[j++];
+            } else {
+                result[count++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static class CountingOutput extends OutputStream {
+        private final OutputStream out;
+        long written = 0;
+
+        CountingOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Distinct trigrams of one file at a time: a bit per possible trigram plus the list of those set, so
+    // clearing it costs as much as filling it. One per thread, since it is 2 MB.
+    private static class TrigramSet {
+        private final long[] bits = new long[1 << 18];
+        private int[] keys = new int[1024];
+        private int size = 0;
+
+        void add(int key) {
+            long mask = 1L << key;
+            if ((bits[key >>> 6] & mask) == 0) {
+                bits[key >>> 6] |= mask;
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                }
+                keys[size++] = key;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        // The keys in ascending order, leaving the set empty
+        int[] drain() {
+            int[] sorted = Arrays.copyOf(keys, size);
+            for (int key : sorted) {
+                bits[key >>> 6] = 0;
+            }
+            size = 0;
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    // Lists of file ids per trigram for the files read in this build, as delta-encoded varints in growable
+    // byte arrays; ids arrive in ascending order
+    private static class PostingBuilder {
+        private final Map<Integer, Posting> postings = new HashMap<>();
+
+        private static class Posting {
+            byte[] bytes = new byte[8];
+            int length = 0;
+            int count = 0;
+            int last = -1;
+        }
+
+        void add(int key, int id) {
+            Posting posting = postings.computeIfAbsent(key, k -> new Posting());
+            int delta = id - posting.last;
+            posting.last = id;
+            posting.count++;
+            while (true) {
+                if (posting.length == posting.bytes.length) {
+                    posting.bytes = Arrays.copyOf(posting.bytes, posting.length * 2);
+                }
+                if ((delta & ~0x7f) == 0) {
+                    posting.bytes[posting.length++] = (byte) delta;
+                    return;
+                }
+                posting.bytes[posting.length++] = (byte) (delta & 0x7f | 0x80);
+                delta >>>= 7;
+            }
+        }
+
+        int[] keys() {
+            int[] keys = new int[postings.size()];
+            int i = 0;
+            for (int key : postings.keySet()) {
+                keys[i++] = key;
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+
+        int[] posting(int key) {
+            Posting posting = postings.get(key);
+            int[] ids = new int[posting.count];
+            int position = 0;
+            int id = -1;
+            for (int i = 0; i < posting.count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = posting.bytes[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.IOException;
+
+// uniq: collapses runs of identical adjacent lines into one, optionally prefixed with the run's length.
+// Only the current run is held, so it streams; sort first to collapse duplicates anywhere in the input.
+public class Uniq {
+    private Uniq() {
+    }
+
+    public static LineSource apply(LineSource input, boolean count) {
+        return new LineSource() {
+            private String previous;
+            private long repeats = 0;
+            private boolean finished = false;
+
+            @Override
+            public String nextLine() throws IOException {
+                while (!finished) {
+                    String line = input.nextLine();
+                    if (line == null) {
+                        finished = true;
+                        return previous == null ? null : line(previous, repeats);
+                    }
+                    if (line.equals(previous)) {
+                        repeats++;
+                        continue;
+                    }
+                    String run = previous;
+                    long runLength = repeats;
+                    previous = line;
+                    repeats = 1;
+                    if (run != null) {
+                        return line(run, runLength);
+                    }
+                }
+                return null;
+            }
+
+            private String line(String line, long repeats) {
+                return count ? String.format("%7d %s", repeats, line) : line;
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+
+            @Override
+            public boolean ready() {
+                return input.ready();
+            }
+        };
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+// xargs: runs a command once for every few lines of its input, each line being one argument, with up to a
+// given number of invocations at once. Every worker pulls the next lines from the upstream itself, runs the
+// command on them and hands its output back numbered, so a slow invocation only holds up its own worker.
+// In order, output is passed on as the lines were read; otherwise as invocations finish. Either way at
+// most a window of finished invocations waits to be read, after which the workers stop taking more lines.
+public class Xargs implements LineSource {
+    // Shared by every xargs stage; each stage keeps its own number of workers on it
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "xargs");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int WINDOW_PER_WORKER = 4;
+
+    private final LineSource upstream;
+    private final int argumentsPerCommand;
+    private final boolean ordered;
+    private final Function<List<String>, List<String>> command;
+    private final Cancellation cancellation;
+    // Invocations started but not yet read downstream
+    private final Semaphore window;
+
+    // Guarded by reading: taking the next arguments from the upstream and numbering them
+    private final Object reading = new Object();
+    private long started = 0;
+    private boolean exhausted = false;
+
+    // Guarded by this: finished invocations by number, and what the workers are doing
+    private final TreeMap<Long, List<String>> results = new TreeMap<>();
+    private final Set<Thread> workers = new HashSet<>();
+    private int running;
+    private long nextResult = 0;
+    private Throwable failure;
+    private volatile boolean closed = false;
+
+    // Consumer side state
+    private List<String> current = List.of();
+    private int index = 0;
+
+    // The command gets the arguments of one invocation and returns its output, reporting its own errors
+    public Xargs(LineSource upstream, int argumentsPerCommand, int parallelism, boolean ordered,
+                 Function<List<String>, List<String>> command) {
+        this.upstream = upstream;
+        this.argumentsPerCommand = argumentsPerCommand;
+        this.ordered = ordered;
+        this.command = command;
+        this.cancellation = Cancellation.current();
+        this.window = new Semaphore(parallelism * WINDOW_PER_WORKER);
+        this.running = parallelism;
+        for (int i = 0; i < parallelism; i++) {
+            EXECUTOR.execute(() -> Cancellation.run(cancellation, this::work));
+        }
+    }
+
+    private void work() {
+        synchronized (this) {
+            if (closed) {
+                finished(null);
+                return;
+            }
+            workers.add(Thread.currentThread());
+        }
+        Throwable error = null;
+        try {
+            while (!closed) {
+                window.acquire();
+                long number;
+                List<String> arguments = new ArrayList<>(argumentsPerCommand);
+                synchronized (reading) {
+                    while (!exhausted && arguments.size() < argumentsPerCommand) {
+                        Cancellation.check(cancellation);
+                        String line = upstream.nextLine();
+                        if (line == null) {
+                            exhausted = true;
+                        } else if (!line.isBlank()) {
+                            arguments.add(line);
+                        }
+                    }
+                    number = started++;
+                }
+                if (arguments.isEmpty()) {
+                    break; // Every line is taken, and this number is never read
+                }
+                List<String> output = command.apply(arguments);
+                synchronized (this) {
+                    results.put(number, output);
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException | InterruptedIOException e) {
+            // Closed while waiting for room or for lines
+        } catch (Throwable e) {
+            error = e;
+        }
+        synchronized (this) {
+            workers.remove(Thread.currentThread());
+            Thread.interrupted(); // Don't carry an interrupt from close() back into the pool
+            finished(error);
+        }
+    }
+
+    // Called holding the lock when a worker stops
+    private void finished(Throwable error) {
+        if (error != null && failure == null) {
+            failure = error;
+        }
+        running--;
+        notifyAll();
+    }
+
+    @Override
+    public String nextLine() throws IOException {
+        while (index >= current.size()) {
+            List<String> next = nextResult();
+            if (next == null) {
+                return null;
+            }
+            current = next;
+            index = 0;
+        }
+        return current.get(index++);
+    }
+
+    // The output of the next invocation to pass on, or null once every invocation has been passed on
+    private synchronized List<String> nextResult() throws IOException {
+        while (true) {
+            if (failure != null && !closed) {
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                throw new IOException(failure);
+            }
+            List<String> result = ordered ? results.remove(nextResult) : pollFirst();
+            if (result != null) {
+                nextResult++;
+                window.release();
+                return result;
+            }
+            if (running == 0 || closed) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for xargs output");
+            }
+        }
+    }
+
+    private List<String> pollFirst() {
+        return results.isEmpty() ? null : results.pollFirstEntry().getValue();
+    }
+
+    // Stop taking lines; invocations already running are interrupted
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            notifyAll();
+        }
+        upstream.close();
+    }
+}